@@ -41,6 +41,7 @@ import org.n52.iceland.ogc.ows.OWSConstants.HelperValues;
 import org.n52.iceland.w3c.SchemaLocation;
 import org.n52.ogc.pilot.PilotConstants;
 import org.n52.ogc.pilot.PilotFeature;
+import org.n52.ogc.wfs.EncodedFeatureMember;
 import org.n52.ogc.wfs.WfsConstants;
 import org.n52.ogc.wfs.WfsFeatureCollection;
 import org.n52.ogc.wfs.WfsMember;
@@ -90,10 +91,15 @@ public class GetFeatureResponseEncoder extends AbstractWfsResponseEncoder<GetFea
             for (WfsMember<?> member : featureCollection.getMember()) {
                 if (member instanceof WfsMember<?>) {
                     WfsMember<?> wfsMember = (WfsMember<?>) member;
-                    XmlObject encodeObjectToXml =
-                            CodingHelper.encodeObjectToXml(getNamespace(wfsMember.getElement()), wfsMember.getElement(),
-                                    additionalValues);
-                    xbFeatureCollectionType.addNewMember().set(encodeObjectToXml);
+                    if (wfsMember instanceof EncodedFeatureMember && ((EncodedFeatureMember) wfsMember).isSetEncoded()) {
+                        // pre-encoded cached feature, set() copies it
+                        xbFeatureCollectionType.addNewMember().set(((EncodedFeatureMember) wfsMember).getEncoded());
+                    } else {
+                        XmlObject encodeObjectToXml =
+                                CodingHelper.encodeObjectToXml(getNamespace(wfsMember.getElement()),
+                                        wfsMember.getElement(), additionalValues);
+                        xbFeatureCollectionType.addNewMember().set(encodeObjectToXml);
+                    }
                 }
             }
         }
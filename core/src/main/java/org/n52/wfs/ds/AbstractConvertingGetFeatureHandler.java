@@ -65,6 +65,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Lists;
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Point;
 
 public abstract class AbstractConvertingGetFeatureHandler extends AbstractGetFeatureHandler {
@@ -373,12 +374,27 @@ public abstract class AbstractConvertingGetFeatureHandler extends AbstractGetFea
         }
     }
 
+    /**
+     * Drop the height of WGS84 points. The point is replaced by a two
+     * dimensional copy, the geometry itself is not modified as it may be
+     * shared. Features that are already two dimensional are not modified at
+     * all.
+     */
     protected AbstractFeature checkGeometry(AbstractFeature abstractFeature) {
         if (abstractFeature != null && abstractFeature instanceof SamplingFeature && ((SamplingFeature)abstractFeature).isSetGeometry()) {
             SamplingFeature feature = (SamplingFeature) abstractFeature;
             if (feature.getGeometry() instanceof Point &&  feature.getGeometry().getSRID() == 4326) {
                 Point point = (Point)feature.getGeometry();
-                point.getCoordinate().z = Double.NaN;
+                Coordinate coordinate = point.getCoordinate();
+                if (!Double.isNaN(coordinate.z)) {
+                    Point flat = point.getFactory().createPoint(new Coordinate(coordinate.x, coordinate.y));
+                    flat.setSRID(point.getSRID());
+                    try {
+                        feature.setGeometry(flat);
+                    } catch (OwsExceptionReport e) {
+                        LOGGER.debug("Error while dropping the height of feature: {}", feature.getIdentifier());
+                    }
+                }
             }
         }
         return abstractFeature;
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.n52.iceland.cache.ContentCache;
+import org.n52.iceland.cache.WritableContentCache;
+import org.n52.iceland.cache.ctrl.persistence.CachePersistenceStrategy;
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+import org.n52.iceland.lifecycle.Destroyable;
+import org.n52.iceland.ogc.gml.AbstractFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Persists the cached features after each successful cache update in the
+ * binary format of {@link FeatureSnapshotFile}. On startup the persisted
+ * features are loaded and prepared like updated features, so feature requests
+ * are answered from the cache until the first scheduled update. The snapshot
+ * does not hold all feature properties, so the loaded cache is marked as
+ * partial and the first update of the controller is an incremental one,
+ * which completes the partial features in place, see
+ * {@link CompleteCacheUpdateFactoryImpl#onCacheRestored()}.
+ *
+ * The features are written asynchronously. Because the cache publishes
+ * immutable snapshots, the snapshot of the update is written without
+ * copying it. Each snapshot gets a generation when it is taken, a snapshot
+ * is not written if a newer one was written already.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class BinaryCachePersistenceStrategy implements CachePersistenceStrategy, Destroyable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BinaryCachePersistenceStrategy.class);
+
+    public static final String FILE_KEY = "wfs.cacheSnapshot.file";
+
+    private static final String DEFAULT_FILE_NAME = "wfs-sos-bridge-cache.bin";
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wfs-cache-persistence-%d").build());
+
+    private Path file = Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_FILE_NAME);
+
+    private final AtomicLong generations = new AtomicLong();
+
+    private long persistedGeneration;
+
+    private WfsCacheFeederHandler cacheFeederHandler;
+
+    private CompleteCacheUpdateFactoryImpl completeCacheUpdateFactory;
+
+    @Inject
+    public void setCacheFeederHandler(WfsCacheFeederHandler cacheFeederHandler) {
+        this.cacheFeederHandler = cacheFeederHandler;
+    }
+
+    @Inject
+    public void setCompleteCacheUpdateFactory(CompleteCacheUpdateFactoryImpl completeCacheUpdateFactory) {
+        this.completeCacheUpdateFactory = completeCacheUpdateFactory;
+    }
+
+    /**
+     * @param file
+     *            the path of the snapshot file, empty for the default file in
+     *            the temporary directory
+     */
+    @Setting(FILE_KEY)
+    public void setFile(String file) {
+        this.file = Strings.isNullOrEmpty(file) ? Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_FILE_NAME)
+                : Paths.get(file);
+    }
+
+    @Override
+    public Optional<WritableContentCache> load() {
+        if (Files.isRegularFile(file)) {
+            try {
+                long start = System.currentTimeMillis();
+                Set<AbstractFeature> features = FeatureSnapshotFile.read(file);
+                InMemoryCacheImpl cache = new InMemoryCacheImpl();
+                cacheFeederHandler.loadCache(cache, features);
+                LOGGER.info("Loaded {} cached features from {} in {} ms", features.size(), file,
+                        System.currentTimeMillis() - start);
+                completeCacheUpdateFactory.onCacheRestored();
+                return Optional.<WritableContentCache> of(cache);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Error while loading the cache snapshot from " + file, e);
+            }
+        }
+        return Optional.absent();
+    }
+
+    @Override
+    public void persistOnPartialUpdate(ContentCache cache) {
+        persistAsync(cache);
+    }
+
+    @Override
+    public void persistOnCompleteUpdate(ContentCache cache) {
+        persistAsync(cache);
+    }
+
+    @Override
+    public void persistOnShutdown(ContentCache cache) {
+        persist(cache);
+    }
+
+    @Override
+    public void remove() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Error while removing the cache snapshot " + file, e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void persistAsync(ContentCache cache) {
+        if (cache instanceof InMemoryCacheImpl) {
+            // the snapshot is immutable, later updates do not affect it
+            InMemoryCacheImpl.Snapshot snapshot = ((InMemoryCacheImpl) cache).getSnapshot();
+            long generation = generations.incrementAndGet();
+            executor.execute(() -> persist(snapshot, generation));
+        }
+    }
+
+    private void persist(ContentCache cache) {
+        if (cache instanceof InMemoryCacheImpl) {
+            persist(((InMemoryCacheImpl) cache).getSnapshot(), generations.incrementAndGet());
+        }
+    }
+
+    private synchronized void persist(InMemoryCacheImpl.Snapshot snapshot, long generation) {
+        if (generation < persistedGeneration) {
+            LOGGER.debug("Skipped persisting an outdated cache snapshot");
+            return;
+        }
+        if (snapshot.isSetAbstractFeatures()) {
+            try {
+                long start = System.currentTimeMillis();
+                int count = FeatureSnapshotFile.write(snapshot.getAbstractFeatures(), file);
+                persistedGeneration = generation;
+                LOGGER.debug("Persisted {} cached features to {} in {} ms", count, file,
+                        System.currentTimeMillis() - start);
+            } catch (IOException e) {
+                LOGGER.warn("Error while persisting the cache snapshot to " + file, e);
+            }
+        }
+    }
+
+}
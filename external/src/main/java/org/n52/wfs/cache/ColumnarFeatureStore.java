@@ -0,0 +1,386 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.cache;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.gml.AbstractFeature;
+import org.n52.iceland.ogc.gml.CodeWithAuthority;
+import org.n52.sos.ogc.om.features.samplingFeatures.SamplingFeature;
+import org.n52.sos.util.JTSHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Immutable column store of sampling features. Instead of an object graph
+ * per feature the properties are stored in parallel primitive arrays:
+ * strings are interned in a sorted dictionary and referenced by int, names
+ * are referenced through int offsets and point coordinates are packed in a
+ * double array. Bounding box queries scan the coordinate array directly.
+ * Feature objects are only created for the features that are returned.
+ *
+ * Only the properties the WFS output uses are stored: identifier and code
+ * space, gml:id, feature type, description, names and geometry.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+final class ColumnarFeatureStore implements Serializable {
+
+    private static final long serialVersionUID = 6011960452834907612L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ColumnarFeatureStore.class);
+
+    private static final int NULL = -1;
+
+    /**
+     * Sorted, unique strings
+     */
+    private final String[] strings;
+
+    private final int[] identifiers;
+
+    private final int[] codeSpaces;
+
+    private final int[] gmlIds;
+
+    private final int[] featureTypes;
+
+    private final int[] descriptions;
+
+    /**
+     * Names of feature i are names[nameOffsets[i]] to names[nameOffsets[i + 1]]
+     */
+    private final int[] nameOffsets;
+
+    private final int[] names;
+
+    private final int[] srids;
+
+    /**
+     * x and y of feature i are coordinates[2 * i] and coordinates[2 * i + 1],
+     * NaN for features without point geometry
+     */
+    private final double[] coordinates;
+
+    /**
+     * z of feature i, <code>null</code> if no point has a z coordinate
+     */
+    private final double[] heights;
+
+    /**
+     * Geometries other than points by feature
+     */
+    private final ImmutableMap<Integer, Geometry> geometries;
+
+    /**
+     * Feature by dictionary index of the identifier, -1 if none
+     */
+    private final int[] featureByIdentifier;
+
+    /**
+     * Feature by dictionary index of the gml:id, -1 if none
+     */
+    private final int[] featureByGmlId;
+
+    private ColumnarFeatureStore(Collection<SamplingFeature> features) {
+        int size = features.size();
+        this.strings = buildDictionary(features);
+        this.identifiers = new int[size];
+        this.codeSpaces = new int[size];
+        this.gmlIds = new int[size];
+        this.featureTypes = new int[size];
+        this.descriptions = new int[size];
+        this.nameOffsets = new int[size + 1];
+        this.srids = new int[size];
+        this.coordinates = new double[2 * size];
+        this.featureByIdentifier = new int[strings.length];
+        this.featureByGmlId = new int[strings.length];
+        Arrays.fill(featureByIdentifier, NULL);
+        Arrays.fill(featureByGmlId, NULL);
+        List<Integer> nameList = Lists.newArrayList();
+        Map<Integer, Geometry> otherGeometries = Maps.newHashMap();
+        double[] z = null;
+        int i = 0;
+        for (SamplingFeature feature : features) {
+            identifiers[i] = indexOf(feature.getIdentifier());
+            codeSpaces[i] = indexOf(FeatureSnapshotFile.getCodeSpace(feature));
+            gmlIds[i] = indexOf(feature.getGmlId());
+            featureTypes[i] = indexOf(feature.getFeatureType());
+            descriptions[i] = indexOf(feature.getDescription());
+            // the first feature wins if identifiers or gml:ids are not unique
+            if (identifiers[i] != NULL && featureByIdentifier[identifiers[i]] == NULL) {
+                featureByIdentifier[identifiers[i]] = i;
+            }
+            if (gmlIds[i] != NULL && featureByGmlId[gmlIds[i]] == NULL) {
+                featureByGmlId[gmlIds[i]] = i;
+            }
+            nameOffsets[i] = nameList.size();
+            for (String name : FeatureSnapshotFile.getNames(feature)) {
+                nameList.add(indexOf(name));
+            }
+            coordinates[2 * i] = Double.NaN;
+            coordinates[2 * i + 1] = Double.NaN;
+            if (feature.isSetGeometry()) {
+                Geometry geometry = feature.getGeometry();
+                srids[i] = geometry.getSRID();
+                if (geometry instanceof Point) {
+                    Coordinate coordinate = geometry.getCoordinate();
+                    coordinates[2 * i] = coordinate.x;
+                    coordinates[2 * i + 1] = coordinate.y;
+                    if (!Double.isNaN(coordinate.z)) {
+                        if (z == null) {
+                            z = new double[size];
+                            Arrays.fill(z, Double.NaN);
+                        }
+                        z[i] = coordinate.z;
+                    }
+                } else {
+                    otherGeometries.put(i, geometry);
+                }
+            }
+            i++;
+        }
+        nameOffsets[size] = nameList.size();
+        this.names = new int[nameList.size()];
+        for (int n = 0; n < names.length; n++) {
+            names[n] = nameList.get(n);
+        }
+        this.heights = z;
+        this.geometries = ImmutableMap.copyOf(otherGeometries);
+    }
+
+    /**
+     * Create the store of the sampling features, other features are ignored
+     *
+     * @param features
+     *            the features
+     * @return the store
+     */
+    static ColumnarFeatureStore of(Collection<AbstractFeature> features) {
+        List<SamplingFeature> samplingFeatures = Lists.newArrayListWithCapacity(features.size());
+        for (AbstractFeature feature : features) {
+            if (feature instanceof SamplingFeature) {
+                samplingFeatures.add((SamplingFeature) feature);
+            }
+        }
+        ColumnarFeatureStore store = new ColumnarFeatureStore(samplingFeatures);
+        if (LOGGER.isDebugEnabled() && store.size() > 0) {
+            long heapSize = store.getHeapSize();
+            LOGGER.debug("Columnar feature store of {} features uses about {} bytes, {} bytes per feature",
+                    store.size(), heapSize, heapSize / store.size());
+        }
+        return store;
+    }
+
+    int size() {
+        return identifiers.length;
+    }
+
+    /**
+     * @return all features, created on each call
+     */
+    ImmutableSet<AbstractFeature> getFeatures() {
+        ImmutableSet.Builder<AbstractFeature> features = ImmutableSet.builder();
+        for (int i = 0; i < size(); i++) {
+            features.add(getFeature(i));
+        }
+        return features.build();
+    }
+
+    /**
+     * Get the features whose geometry envelope intersects the envelope
+     *
+     * @param envelope
+     *            the envelope in the axis order of the feature geometries
+     * @return the features, created on each call
+     */
+    ImmutableSet<AbstractFeature> getFeatures(Envelope envelope) {
+        ImmutableSet.Builder<AbstractFeature> features = ImmutableSet.builder();
+        double minX = envelope.getMinX();
+        double maxX = envelope.getMaxX();
+        double minY = envelope.getMinY();
+        double maxY = envelope.getMaxY();
+        for (int i = 0; i < size(); i++) {
+            double x = coordinates[2 * i];
+            double y = coordinates[2 * i + 1];
+            // NaN never matches
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                features.add(getFeature(i));
+            }
+        }
+        for (Map.Entry<Integer, Geometry> geometry : geometries.entrySet()) {
+            if (envelope.intersects(geometry.getValue().getEnvelopeInternal())) {
+                features.add(getFeature(geometry.getKey()));
+            }
+        }
+        return features.build();
+    }
+
+    /**
+     * @return the feature with the identifier or <code>null</code>
+     */
+    AbstractFeature getFeatureByIdentifier(String identifier) {
+        int index = indexOf(identifier);
+        return index == NULL || featureByIdentifier[index] == NULL ? null : getFeature(featureByIdentifier[index]);
+    }
+
+    /**
+     * @return the feature with the gml:id or <code>null</code>
+     */
+    AbstractFeature getFeatureByGmlId(String gmlId) {
+        int index = indexOf(gmlId);
+        return index == NULL || featureByGmlId[index] == NULL ? null : getFeature(featureByGmlId[index]);
+    }
+
+    boolean containsIdentifier(String identifier) {
+        int index = indexOf(identifier);
+        return index != NULL && featureByIdentifier[index] != NULL;
+    }
+
+    /**
+     * @return the identifiers of the features
+     */
+    Set<String> getIdentifiers() {
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (int identifier : identifiers) {
+            if (identifier != NULL) {
+                builder.add(strings[identifier]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Estimate the heap size of the store, assuming compressed references
+     *
+     * @return the estimated size in bytes
+     */
+    long getHeapSize() {
+        // identifiers, code spaces, gml:ids, feature types, descriptions and srids
+        long size = 6 * array(4L * identifiers.length) + array(4L * nameOffsets.length) + array(4L * names.length)
+                + 2 * array(4L * strings.length) + array(4L * strings.length) + array(8L * coordinates.length)
+                + (heights == null ? 0 : array(8L * heights.length));
+        for (String string : strings) {
+            // String object and char array
+            size += 24 + array(2L * string.length());
+        }
+        for (Geometry geometry : geometries.values()) {
+            // map entry, boxed key and geometry with coordinates
+            size += 64 + 48L * geometry.getNumPoints();
+        }
+        return size;
+    }
+
+    private SamplingFeature getFeature(int i) {
+        String identifier = string(identifiers[i]);
+        String codeSpace = string(codeSpaces[i]);
+        SamplingFeature feature = new SamplingFeature(codeSpace == null ? new CodeWithAuthority(identifier)
+                : new CodeWithAuthority(identifier, codeSpace), string(gmlIds[i]));
+        if (featureTypes[i] != NULL) {
+            feature.setFeatureType(string(featureTypes[i]));
+        }
+        if (descriptions[i] != NULL) {
+            feature.setDescription(string(descriptions[i]));
+        }
+        for (int n = nameOffsets[i]; n < nameOffsets[i + 1]; n++) {
+            feature.addName(string(names[n]));
+        }
+        try {
+            if (!Double.isNaN(coordinates[2 * i])) {
+                Coordinate coordinate = heights == null ? new Coordinate(coordinates[2 * i], coordinates[2 * i + 1])
+                        : new Coordinate(coordinates[2 * i], coordinates[2 * i + 1], heights[i]);
+                feature.setGeometry(JTSHelper.getGeometryFactoryForSRID(srids[i]).createPoint(coordinate));
+            } else if (geometries.containsKey(i)) {
+                // geometries are shared, copy them like the points are created
+                feature.setGeometry((Geometry) geometries.get(i).clone());
+            }
+        } catch (OwsExceptionReport e) {
+            LOGGER.debug("Error while setting geometry of feature: {}", identifier, e);
+        }
+        return feature;
+    }
+
+    private int indexOf(String string) {
+        if (string == null) {
+            return NULL;
+        }
+        int index = Arrays.binarySearch(strings, string);
+        return index < 0 ? NULL : index;
+    }
+
+    private String string(int index) {
+        return index == NULL ? null : strings[index];
+    }
+
+    private static String[] buildDictionary(Collection<SamplingFeature> features) {
+        Set<String> dictionary = new TreeSet<>();
+        for (SamplingFeature feature : features) {
+            addTo(dictionary, feature.getIdentifier());
+            addTo(dictionary, FeatureSnapshotFile.getCodeSpace(feature));
+            addTo(dictionary, feature.getGmlId());
+            addTo(dictionary, feature.getFeatureType());
+            addTo(dictionary, feature.getDescription());
+            for (String name : FeatureSnapshotFile.getNames(feature)) {
+                addTo(dictionary, name);
+            }
+        }
+        return dictionary.toArray(new String[dictionary.size()]);
+    }
+
+    private static void addTo(Set<String> dictionary, String string) {
+        if (string != null) {
+            dictionary.add(string);
+        }
+    }
+
+    private static long array(long bytes) {
+        // array header and alignment
+        return 16 + ((bytes + 7) / 8) * 8;
+    }
+
+}
@@ -28,24 +28,74 @@
  */
 package org.n52.wfs.cache;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.inject.Inject;
 
 import org.n52.iceland.cache.ContentCacheUpdate;
 import org.n52.iceland.cache.ctrl.CompleteCacheUpdateFactory;
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
 import org.n52.sos.ds.CacheFeederHandler;
 
+/**
+ * Factory of the scheduled cache updates. If incremental updates are
+ * enabled, only every n-th update is a {@link CompleteCacheUpdate}, the
+ * updates in between are {@link IncrementalCacheUpdate}s of the current cache.
+ * The first update is complete, unless the cache was restored from a
+ * persisted snapshot, see {@link #onCacheRestored()}.
+ */
+@Configurable
 public class CompleteCacheUpdateFactoryImpl
         implements CompleteCacheUpdateFactory {
 
+    public static final String INCREMENTAL_KEY = "wfs.cacheUpdate.incremental";
+
+    public static final String COMPLETE_UPDATE_INTERVAL_KEY = "wfs.cacheUpdate.completeUpdateInterval";
+
+    private final AtomicInteger updates = new AtomicInteger();
+
     private WfsCacheFeederHandler cacheFeederHandler;
 
+    private boolean incremental = true;
+
+    private int completeUpdateInterval = 12;
+
     @Inject
     public void setCacheFeederHandler(WfsCacheFeederHandler cacheFeederHandler) {
         this.cacheFeederHandler = cacheFeederHandler;
     }
 
+    @Setting(INCREMENTAL_KEY)
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * @param completeUpdateInterval
+     *            the number of incremental updates between two complete
+     *            updates
+     */
+    @Setting(COMPLETE_UPDATE_INTERVAL_KEY)
+    public void setCompleteUpdateInterval(int completeUpdateInterval) {
+        this.completeUpdateInterval = Math.max(0, completeUpdateInterval);
+    }
+
+    /**
+     * The cache was restored from a persisted snapshot, so the first update
+     * is incremental. It completes the partial restored features in place
+     * instead of loading all features into a new cache once more.
+     */
+    public void onCacheRestored() {
+        updates.compareAndSet(0, 1);
+    }
+
     @Override
     public ContentCacheUpdate get() {
+        // the first update is complete unless the cache was restored
+        if (incremental && updates.getAndIncrement() % (completeUpdateInterval + 1) != 0) {
+            return new IncrementalCacheUpdate(this.cacheFeederHandler);
+        }
         return new CompleteCacheUpdate(this.cacheFeederHandler);
     }
 
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.gml.AbstractFeature;
+import org.n52.iceland.ogc.gml.CodeType;
+import org.n52.iceland.ogc.gml.CodeWithAuthority;
+import org.n52.sos.ogc.om.features.samplingFeatures.SamplingFeature;
+import org.n52.sos.util.JTSHelper;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * Compact binary file format of the cached features. All strings are stored
+ * once in a string table and referenced by index, point coordinates are
+ * stored as packed doubles, other geometries as WKB. The file is read through
+ * a memory mapped buffer.
+ *
+ * <pre>
+ * int magic, int version
+ * int stringCount, (int length, UTF-8 bytes)*
+ * int featureCount, feature*
+ * feature: int identifier, int codeSpace, int gmlId, int featureType,
+ *          int description, int nameCount, int name*,
+ *          byte geometryType, [int srid, geometry]
+ * </pre>
+ *
+ * String references are <code>-1</code> for <code>null</code>.
+ *
+ * Only the properties needed to look up and encode the features are stored,
+ * e.g. sampled features, parameters, name code spaces and the XML
+ * description are not. The read features are incomplete and have to be
+ * replaced by a complete cache update, see
+ * {@link BinaryCachePersistenceStrategy}.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+final class FeatureSnapshotFile {
+
+    private static final int MAGIC = 0x57465343;
+
+    private static final int VERSION = 1;
+
+    private static final int NULL = -1;
+
+    private static final byte NO_GEOMETRY = 0;
+
+    private static final byte POINT_2D = 1;
+
+    private static final byte POINT_3D = 2;
+
+    private static final byte WKB = 3;
+
+    private FeatureSnapshotFile() {
+    }
+
+    /**
+     * Write the sampling features to the file. The file is written to a
+     * temporary file first and then moved, so readers never see a partially
+     * written file.
+     *
+     * @param features
+     *            the features, only sampling features are written
+     * @param file
+     *            the file
+     * @return the number of written features
+     * @throws IOException
+     *             if the file could not be written
+     */
+    static int write(Collection<AbstractFeature> features, Path file) throws IOException {
+        List<SamplingFeature> samplingFeatures = Lists.newArrayListWithCapacity(features.size());
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for (AbstractFeature feature : features) {
+            if (feature instanceof SamplingFeature) {
+                SamplingFeature samplingFeature = (SamplingFeature) feature;
+                samplingFeatures.add(samplingFeature);
+                intern(strings, samplingFeature.getIdentifier());
+                intern(strings, getCodeSpace(samplingFeature));
+                intern(strings, samplingFeature.getGmlId());
+                intern(strings, samplingFeature.getFeatureType());
+                intern(strings, samplingFeature.getDescription());
+                for (String name : getNames(samplingFeature)) {
+                    intern(strings, name);
+                }
+            }
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(samplingFeatures.size());
+            for (SamplingFeature feature : samplingFeatures) {
+                out.writeInt(indexOf(strings, feature.getIdentifier()));
+                out.writeInt(indexOf(strings, getCodeSpace(feature)));
+                out.writeInt(indexOf(strings, feature.getGmlId()));
+                out.writeInt(indexOf(strings, feature.getFeatureType()));
+                out.writeInt(indexOf(strings, feature.getDescription()));
+                List<String> names = getNames(feature);
+                out.writeInt(names.size());
+                for (String name : names) {
+                    out.writeInt(indexOf(strings, name));
+                }
+                writeGeometry(out, feature.isSetGeometry() ? feature.getGeometry() : null);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return samplingFeatures.size();
+    }
+
+    /**
+     * Read the features from the file
+     *
+     * @param file
+     *            the file
+     * @return the features
+     * @throws IOException
+     *             if the file could not be read or is invalid
+     */
+    static Set<AbstractFeature> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        }
+    }
+
+    private static Set<AbstractFeature> read(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a feature snapshot file");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported feature snapshot version " + version);
+            }
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            int count = buffer.getInt();
+            Set<AbstractFeature> features = Sets.newHashSetWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                features.add(readFeature(buffer, strings));
+            }
+            return features;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | ParseException | OwsExceptionReport e) {
+            throw new IOException("Invalid feature snapshot file", e);
+        }
+    }
+
+    private static SamplingFeature readFeature(ByteBuffer buffer, String[] strings)
+            throws ParseException, OwsExceptionReport {
+        String identifier = string(strings, buffer.getInt());
+        String codeSpace = string(strings, buffer.getInt());
+        String gmlId = string(strings, buffer.getInt());
+        SamplingFeature feature = new SamplingFeature(codeSpace == null ? new CodeWithAuthority(identifier)
+                : new CodeWithAuthority(identifier, codeSpace), gmlId);
+        String featureType = string(strings, buffer.getInt());
+        if (featureType != null) {
+            feature.setFeatureType(featureType);
+        }
+        String description = string(strings, buffer.getInt());
+        if (description != null) {
+            feature.setDescription(description);
+        }
+        int names = buffer.getInt();
+        for (int i = 0; i < names; i++) {
+            feature.addName(string(strings, buffer.getInt()));
+        }
+        Geometry geometry = readGeometry(buffer);
+        if (geometry != null) {
+            feature.setGeometry(geometry);
+        }
+        return feature;
+    }
+
+    private static void writeGeometry(DataOutputStream out, Geometry geometry) throws IOException {
+        if (geometry == null) {
+            out.writeByte(NO_GEOMETRY);
+        } else if (geometry instanceof Point) {
+            Coordinate coordinate = geometry.getCoordinate();
+            boolean is3D = !Double.isNaN(coordinate.z);
+            out.writeByte(is3D ? POINT_3D : POINT_2D);
+            out.writeInt(geometry.getSRID());
+            out.writeDouble(coordinate.x);
+            out.writeDouble(coordinate.y);
+            if (is3D) {
+                out.writeDouble(coordinate.z);
+            }
+        } else {
+            byte[] wkb = new WKBWriter(3).write(geometry);
+            out.writeByte(WKB);
+            out.writeInt(geometry.getSRID());
+            out.writeInt(wkb.length);
+            out.write(wkb);
+        }
+    }
+
+    private static Geometry readGeometry(ByteBuffer buffer) throws ParseException {
+        byte type = buffer.get();
+        if (type == NO_GEOMETRY) {
+            return null;
+        }
+        int srid = buffer.getInt();
+        switch (type) {
+        case POINT_2D:
+            return JTSHelper.getGeometryFactoryForSRID(srid)
+                    .createPoint(new Coordinate(buffer.getDouble(), buffer.getDouble()));
+        case POINT_3D:
+            return JTSHelper.getGeometryFactoryForSRID(srid)
+                    .createPoint(new Coordinate(buffer.getDouble(), buffer.getDouble(), buffer.getDouble()));
+        case WKB:
+            byte[] wkb = new byte[buffer.getInt()];
+            buffer.get(wkb);
+            Geometry geometry = new WKBReader(JTSHelper.getGeometryFactoryForSRID(srid)).read(wkb);
+            geometry.setSRID(srid);
+            return geometry;
+        default:
+            throw new ParseException("Unknown geometry type " + type);
+        }
+    }
+
+    static String getCodeSpace(SamplingFeature feature) {
+        CodeWithAuthority identifier = feature.getIdentifierCodeWithAuthority();
+        return identifier != null && identifier.isSetCodeSpace() ? identifier.getCodeSpace() : null;
+    }
+
+    static List<String> getNames(SamplingFeature feature) {
+        List<String> names = Lists.newArrayList();
+        if (feature.isSetName()) {
+            for (CodeType name : feature.getName()) {
+                if (name != null && name.getValue() != null) {
+                    names.add(name.getValue());
+                }
+            }
+        }
+        return names;
+    }
+
+    private static void intern(Map<String, Integer> strings, String string) {
+        if (string != null && !strings.containsKey(string)) {
+            strings.put(string, strings.size());
+        }
+    }
+
+    private static int indexOf(Map<String, Integer> strings, String string) {
+        return string == null ? NULL : strings.get(string);
+    }
+
+    private static String string(String[] strings, int index) {
+        return index == NULL ? null : strings[index];
+    }
+
+}
@@ -28,83 +28,550 @@
  */
 package org.n52.wfs.cache;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
+import javax.xml.namespace.QName;
+
+import org.apache.xmlbeans.XmlObject;
 import org.n52.iceland.cache.ContentCache;
 import org.n52.iceland.cache.WritableContentCache;
 import org.n52.iceland.exception.ows.OwsExceptionReport;
 import org.n52.iceland.ogc.gml.AbstractFeature;
 import org.n52.iceland.ogc.ows.OwsCapabilities;
 import org.n52.iceland.util.CollectionHelper;
+import org.n52.sos.ogc.om.features.samplingFeatures.SamplingFeature;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.strtree.STRtree;
 
+/**
+ * In-memory cache of the SOS capabilities and features. The cached data and
+ * the indexes derived from it are published together as an immutable
+ * {@link Snapshot} through a single volatile reference. Readers take the
+ * current snapshot without copying or locking, updates build a new snapshot
+ * and swap the reference.
+ */
 public class InMemoryCacheImpl implements ContentCache, WritableContentCache {
 
-    private static final long serialVersionUID = 7357861778543588998L;
-    
-    private OwsCapabilities owsCapabilities;
-    
-    private Set<AbstractFeature> abstractFeatures = newSynchronizedSet();
-    
+    private static final long serialVersionUID = -3166204407637542335L;
+
+    private volatile Snapshot snapshot = new Snapshot(null, ImmutableSet.<AbstractFeature> of());
+
+    private volatile boolean partial;
+
+    /**
+     * @return the current snapshot of the cached data
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
     public OwsCapabilities getCapabilities() throws OwsExceptionReport {
-        return owsCapabilities;
+        return snapshot.getCapabilities();
     }
     
-    public void setOwsCapabilities(OwsCapabilities owsCapabilities) {
-        this.owsCapabilities = owsCapabilities;
+    public synchronized void setOwsCapabilities(OwsCapabilities owsCapabilities) {
+        this.snapshot = snapshot.withCapabilities(owsCapabilities);
     }
 
     /**
      * @return the abstractFeatures
      */
     public Set<AbstractFeature> getAbstractFeatures() {
-        return copyOf(abstractFeatures);
+        return snapshot.getAbstractFeatures();
     }
 
     /**
      * @param abstractFeatures the abstractFeatures to set
      */
-    public void setAbstractFeatures(Set<AbstractFeature> abstractFeatures) {
+    public synchronized void setAbstractFeatures(Set<AbstractFeature> abstractFeatures) {
+        setAbstractFeatures(abstractFeatures, false);
+    }
+
+    /**
+     * @param abstractFeatures
+     *            the abstractFeatures to set
+     * @param columnar
+     *            whether the features are stored in a
+     *            {@link ColumnarFeatureStore} instead of as objects
+     */
+    public synchronized void setAbstractFeatures(Set<AbstractFeature> abstractFeatures, boolean columnar) {
         if (CollectionHelper.isNotEmpty(abstractFeatures)) {
-            this.abstractFeatures.clear();
-            this.abstractFeatures.addAll(abstractFeatures);
+            this.snapshot = columnar
+                    ? new Snapshot(snapshot.getCapabilities(), ColumnarFeatureStore.of(abstractFeatures))
+                    : new Snapshot(snapshot.getCapabilities(), ImmutableSet.copyOf(abstractFeatures));
+            this.partial = false;
         }
     }
 
-    public boolean isSetAbstractFeatures() {
-        return CollectionHelper.isNotEmpty(getAbstractFeatures());
+    /**
+     * @return <code>true</code> if the features may lack properties, e.g.
+     *         because they were loaded from a persisted snapshot, until all
+     *         features are replaced by a complete update
+     */
+    public boolean isPartial() {
+        return partial;
     }
-    
-    protected static <T> Set<T> newSynchronizedSet() {
-        return newSynchronizedSet(null);
+
+    /**
+     * @param partial
+     *            whether the features may lack properties
+     */
+    public synchronized void setPartial(boolean partial) {
+        this.partial = partial;
     }
-    
-    protected static <T> Set<T> newSynchronizedSet(Iterable<T> elements) {
-        if (elements == null) {
-            return CollectionHelper.synchronizedSet(0);
-        } else {
-            if (elements instanceof Collection) {
-                return Collections.synchronizedSet(new HashSet<T>((Collection<T>) elements));
-            } else {
-                HashSet<T> hashSet = new HashSet<T>();
-                for (T t : elements) {
-                    hashSet.add(t);
-                }
-                return Collections.synchronizedSet(hashSet);
+
+    /**
+     * Update the features incrementally. The features with the removed
+     * identifiers are dropped, the added features replace cached features
+     * with the same identifier. All other features are kept. The
+     * representation of the features is kept, too.
+     *
+     * @param addedFeatures
+     *            the new or changed features
+     * @param removedIdentifiers
+     *            the identifiers of the features to remove
+     */
+    public synchronized void updateAbstractFeatures(Collection<AbstractFeature> addedFeatures,
+            Collection<String> removedIdentifiers) {
+        Set<String> replaced = Sets.newHashSet(removedIdentifiers);
+        for (AbstractFeature feature : addedFeatures) {
+            replaced.add(feature.getIdentifier());
+        }
+        ImmutableSet.Builder<AbstractFeature> features = ImmutableSet.builder();
+        for (AbstractFeature feature : snapshot.getAbstractFeatures()) {
+            if (!replaced.contains(feature.getIdentifier())) {
+                features.add(feature);
             }
         }
+        features.addAll(addedFeatures);
+        Snapshot updated = snapshot.isColumnar()
+                ? new Snapshot(snapshot.getCapabilities(), ColumnarFeatureStore.of(features.build()))
+                : new Snapshot(snapshot.getCapabilities(), features.build());
+        // the conversions and encodings of the kept features remain valid
+        this.snapshot = updated.withConvertedFeatures(snapshot.getConvertedFeatures(replaced))
+                .withEncodedFeatures(snapshot.getEncodedFeatures(replaced));
     }
-    
-    protected static <T> Set<T> copyOf(Set<T> set) {
-        if (set == null) {
-            return Collections.emptySet();
-        } else {
-            return Collections.unmodifiableSet(new HashSet<T>(set));
+
+    /**
+     * Set the converted features of a snapshot. The conversions are only set
+     * if the snapshot is still the current one.
+     *
+     * @param base
+     *            the snapshot the features were converted from
+     * @param convertedFeatures
+     *            the converted features by feature type and identifier
+     * @return <code>true</code> if the conversions were set
+     */
+    public synchronized boolean setConvertedFeatures(Snapshot base,
+            Map<QName, Map<String, AbstractFeature>> convertedFeatures) {
+        if (snapshot != base) {
+            return false;
         }
+        this.snapshot = snapshot.withConvertedFeatures(convertedFeatures);
+        return true;
     }
 
-}
+    /**
+     * Set the encoded features of a snapshot. The encodings are only set if
+     * the snapshot is still the current one.
+     *
+     * @param base
+     *            the snapshot the features were encoded from
+     * @param encodedFeatures
+     *            the encoded features by feature type and identifier
+     * @return <code>true</code> if the encodings were set
+     */
+    public synchronized boolean setEncodedFeatures(Snapshot base, Map<QName, Map<String, XmlObject>> encodedFeatures) {
+        if (snapshot != base) {
+            return false;
+        }
+        this.snapshot = snapshot.withEncodedFeatures(encodedFeatures);
+        return true;
+    }
+
+    /**
+     * Get the features whose geometry envelope intersects the envelope. The
+     * result contains candidates only, the exact spatial relation has to be
+     * checked by the caller.
+     *
+     * @param envelope
+     *            the envelope in the axis order of the feature geometries
+     * @return the candidate features
+     */
+    public Set<AbstractFeature> getAbstractFeatures(Envelope envelope) {
+        return snapshot.getAbstractFeatures(envelope);
+    }
+
+    public boolean isSetAbstractFeatures() {
+        return snapshot.isSetAbstractFeatures();
+    }
+
+    /**
+     * @param identifiers
+     *            the feature identifiers
+     * @return the features with the identifiers
+     */
+    public Set<AbstractFeature> getAbstractFeaturesByIdentifier(Collection<String> identifiers) {
+        return snapshot.getAbstractFeaturesByIdentifier(identifiers);
+    }
+
+    /**
+     * @param resourceIds
+     *            the resource ids, gml:ids or identifiers of the features
+     * @return the features with the resource ids
+     */
+    public Set<AbstractFeature> getAbstractFeaturesByResourceId(Collection<String> resourceIds) {
+        return snapshot.getAbstractFeaturesByResourceId(resourceIds);
+    }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // the derived indexes are not serialized
+        this.snapshot = snapshot.isColumnar() ? new Snapshot(snapshot.getCapabilities(), snapshot.columnarFeatures)
+                : new Snapshot(snapshot.getCapabilities(), snapshot.getAbstractFeatures());
+    }
+
+    /**
+     * Immutable snapshot of the cached data and the derived indexes. The
+     * indexes are built once per update, lookups by identifier or gml:id are
+     * constant time. The features are either held as objects or, to save
+     * memory, in a {@link ColumnarFeatureStore} that creates the feature
+     * objects on access.
+     */
+    public static final class Snapshot implements Serializable {
+
+        private static final long serialVersionUID = 2848437364564305473L;
+
+        private final OwsCapabilities capabilities;
+
+        /**
+         * The features, <code>null</code> if columnar
+         */
+        private final ImmutableSet<AbstractFeature> abstractFeatures;
+
+        /**
+         * The columnar features, <code>null</code> if not columnar
+         */
+        private final ColumnarFeatureStore columnarFeatures;
+
+        /**
+         * R-tree of the feature envelopes
+         */
+        private final transient STRtree spatialIndex;
+
+        /**
+         * Features by identifier
+         */
+        private final transient ImmutableMap<String, AbstractFeature> identifierIndex;
+
+        /**
+         * Features by gml:id
+         */
+        private final transient ImmutableMap<String, AbstractFeature> gmlIdIndex;
+
+        /**
+         * Features converted to other feature types by feature type and
+         * identifier
+         */
+        private final transient ImmutableMap<QName, ImmutableMap<String, AbstractFeature>> convertedFeatures;
+
+        /**
+         * Encoded features by feature type and identifier
+         */
+        private final transient ImmutableMap<QName, ImmutableMap<String, XmlObject>> encodedFeatures;
+
+        Snapshot(OwsCapabilities capabilities, ImmutableSet<AbstractFeature> abstractFeatures) {
+            this(capabilities, abstractFeatures, null, buildSpatialIndex(abstractFeatures),
+                    buildIndex(abstractFeatures, AbstractFeature::getIdentifier),
+                    buildIndex(abstractFeatures, AbstractFeature::getGmlId),
+                    ImmutableMap.<QName, ImmutableMap<String, AbstractFeature>> of(),
+                    ImmutableMap.<QName, ImmutableMap<String, XmlObject>> of());
+        }
+
+        Snapshot(OwsCapabilities capabilities, ColumnarFeatureStore columnarFeatures) {
+            // the store has its own indexes
+            this(capabilities, null, columnarFeatures, null, null, null,
+                    ImmutableMap.<QName, ImmutableMap<String, AbstractFeature>> of(),
+                    ImmutableMap.<QName, ImmutableMap<String, XmlObject>> of());
+        }
 
+        private Snapshot(OwsCapabilities capabilities, ImmutableSet<AbstractFeature> abstractFeatures,
+                ColumnarFeatureStore columnarFeatures, STRtree spatialIndex,
+                ImmutableMap<String, AbstractFeature> identifierIndex,
+                ImmutableMap<String, AbstractFeature> gmlIdIndex,
+                ImmutableMap<QName, ImmutableMap<String, AbstractFeature>> convertedFeatures,
+                ImmutableMap<QName, ImmutableMap<String, XmlObject>> encodedFeatures) {
+            this.capabilities = capabilities;
+            this.abstractFeatures = abstractFeatures;
+            this.columnarFeatures = columnarFeatures;
+            this.spatialIndex = spatialIndex;
+            this.identifierIndex = identifierIndex;
+            this.gmlIdIndex = gmlIdIndex;
+            this.convertedFeatures = convertedFeatures;
+            this.encodedFeatures = encodedFeatures;
+        }
+
+        /**
+         * @return a copy of this snapshot with other capabilities, the
+         *         features and indexes are shared
+         */
+        Snapshot withCapabilities(OwsCapabilities capabilities) {
+            return new Snapshot(capabilities, abstractFeatures, columnarFeatures, spatialIndex, identifierIndex,
+                    gmlIdIndex, convertedFeatures, encodedFeatures);
+        }
+
+        /**
+         * @return a copy of this snapshot with additional converted features,
+         *         conversions of unknown features are ignored
+         */
+        Snapshot withConvertedFeatures(Map<QName, ? extends Map<String, AbstractFeature>> converted) {
+            return new Snapshot(capabilities, abstractFeatures, columnarFeatures, spatialIndex, identifierIndex,
+                    gmlIdIndex, merge(convertedFeatures, converted), encodedFeatures);
+        }
+
+        /**
+         * @return a copy of this snapshot with additional encoded features,
+         *         encodings of unknown features are ignored
+         */
+        Snapshot withEncodedFeatures(Map<QName, ? extends Map<String, XmlObject>> encoded) {
+            return new Snapshot(capabilities, abstractFeatures, columnarFeatures, spatialIndex, identifierIndex,
+                    gmlIdIndex, convertedFeatures, merge(encodedFeatures, encoded));
+        }
+
+        private <T> ImmutableMap<QName, ImmutableMap<String, T>> merge(
+                ImmutableMap<QName, ImmutableMap<String, T>> current, Map<QName, ? extends Map<String, T>> added) {
+            Map<QName, Map<String, T>> merged = Maps.newHashMap();
+            if (current != null) {
+                merged.putAll(current);
+            }
+            for (Map.Entry<QName, ? extends Map<String, T>> entry : added.entrySet()) {
+                Map<String, T> features = Maps.newHashMap(merged.getOrDefault(entry.getKey(),
+                        ImmutableMap.<String, T> of()));
+                for (Map.Entry<String, T> feature : entry.getValue().entrySet()) {
+                    if (containsIdentifier(feature.getKey())) {
+                        features.put(feature.getKey(), feature.getValue());
+                    }
+                }
+                merged.put(entry.getKey(), features);
+            }
+            ImmutableMap.Builder<QName, ImmutableMap<String, T>> builder = ImmutableMap.builder();
+            for (Map.Entry<QName, Map<String, T>> entry : merged.entrySet()) {
+                builder.put(entry.getKey(), ImmutableMap.copyOf(entry.getValue()));
+            }
+            return builder.build();
+        }
+
+        private boolean containsIdentifier(String identifier) {
+            return isColumnar() ? columnarFeatures.containsIdentifier(identifier)
+                    : identifierIndex != null && identifierIndex.containsKey(identifier);
+        }
+
+        /**
+         * @return the converted features without the excluded identifiers
+         */
+        private Map<QName, Map<String, AbstractFeature>> getConvertedFeatures(Set<String> excludedIdentifiers) {
+            return without(convertedFeatures, excludedIdentifiers);
+        }
+
+        /**
+         * @return the encoded features without the excluded identifiers
+         */
+        private Map<QName, Map<String, XmlObject>> getEncodedFeatures(Set<String> excludedIdentifiers) {
+            return without(encodedFeatures, excludedIdentifiers);
+        }
+
+        private static <T> Map<QName, Map<String, T>> without(ImmutableMap<QName, ImmutableMap<String, T>> features,
+                Set<String> excludedIdentifiers) {
+            Map<QName, Map<String, T>> filtered = Maps.newHashMap();
+            if (features != null) {
+                for (Map.Entry<QName, ImmutableMap<String, T>> entry : features.entrySet()) {
+                    filtered.put(entry.getKey(), Maps.filterKeys(entry.getValue(),
+                            identifier -> !excludedIdentifiers.contains(identifier)));
+                }
+            }
+            return filtered;
+        }
+
+        /**
+         * Get the conversion of a cached feature to another feature type. The
+         * converted feature is shared and must not be modified.
+         *
+         * @param typeName
+         *            the feature type the feature was converted to
+         * @param feature
+         *            the cached feature
+         * @return the converted feature, <code>null</code> if the feature is
+         *         not converted or is not the cached feature
+         */
+        public AbstractFeature getConvertedFeature(QName typeName, AbstractFeature feature) {
+            return get(convertedFeatures, typeName, feature);
+        }
+
+        /**
+         * Get the encoded XML of a cached feature
+         *
+         * @param typeName
+         *            the feature type the feature was encoded as
+         * @param feature
+         *            the cached feature
+         * @return the encoded feature, <code>null</code> if the feature is not
+         *         encoded or is not the cached feature
+         */
+        public XmlObject getEncodedFeature(QName typeName, AbstractFeature feature) {
+            return get(encodedFeatures, typeName, feature);
+        }
+
+        private <T> T get(ImmutableMap<QName, ImmutableMap<String, T>> features, QName typeName,
+                AbstractFeature feature) {
+            if (features == null || feature == null || !features.containsKey(typeName)) {
+                return null;
+            }
+            // columnar features are created on access and cannot be compared
+            if (isColumnar() ? !columnarFeatures.containsIdentifier(feature.getIdentifier())
+                    : identifierIndex.get(feature.getIdentifier()) != feature) {
+                return null;
+            }
+            return features.get(typeName).get(feature.getIdentifier());
+        }
+
+        public OwsCapabilities getCapabilities() {
+            return capabilities;
+        }
+
+        /**
+         * @return the unmodifiable features, created on each call if columnar
+         */
+        public ImmutableSet<AbstractFeature> getAbstractFeatures() {
+            return isColumnar() ? columnarFeatures.getFeatures() : abstractFeatures;
+        }
+
+        public boolean isSetAbstractFeatures() {
+            return isColumnar() ? columnarFeatures.size() > 0 : !abstractFeatures.isEmpty();
+        }
+
+        /**
+         * @return whether the features are stored in a
+         *         {@link ColumnarFeatureStore}
+         */
+        public boolean isColumnar() {
+            return columnarFeatures != null;
+        }
+
+        /**
+         * Get the features whose geometry envelope intersects the envelope
+         *
+         * @param envelope
+         *            the envelope in the axis order of the feature geometries
+         * @return the candidate features
+         */
+        @SuppressWarnings("unchecked")
+        public Set<AbstractFeature> getAbstractFeatures(Envelope envelope) {
+            if (isColumnar()) {
+                return columnarFeatures.getFeatures(envelope);
+            }
+            if (spatialIndex == null) {
+                return Collections.emptySet();
+            }
+            return ImmutableSet.copyOf((Collection<AbstractFeature>) spatialIndex.query(envelope));
+        }
+
+        /**
+         * @return the identifiers of the features
+         */
+        public Set<String> getIdentifiers() {
+            if (isColumnar()) {
+                return columnarFeatures.getIdentifiers();
+            }
+            return identifierIndex == null ? Collections.<String> emptySet() : identifierIndex.keySet();
+        }
+
+        /**
+         * Get the features with the identifiers, unknown identifiers are
+         * ignored
+         *
+         * @param identifiers
+         *            the feature identifiers
+         * @return the features
+         */
+        public Set<AbstractFeature> getAbstractFeaturesByIdentifier(Collection<String> identifiers) {
+            if (isColumnar()) {
+                return lookup(identifiers, columnarFeatures::getFeatureByIdentifier, null);
+            }
+            return lookup(identifiers, identifierIndex::get, null);
+        }
+
+        /**
+         * Get the features with the resource ids. A resource id is resolved as
+         * gml:id and, if no feature has this gml:id, as identifier. Unknown
+         * resource ids are ignored.
+         *
+         * @param resourceIds
+         *            the resource ids
+         * @return the features
+         */
+        public Set<AbstractFeature> getAbstractFeaturesByResourceId(Collection<String> resourceIds) {
+            if (isColumnar()) {
+                return lookup(resourceIds, columnarFeatures::getFeatureByGmlId,
+                        columnarFeatures::getFeatureByIdentifier);
+            }
+            return lookup(resourceIds, gmlIdIndex::get, identifierIndex::get);
+        }
+
+        private Set<AbstractFeature> lookup(Collection<String> keys, Function<String, AbstractFeature> index,
+                Function<String, AbstractFeature> fallback) {
+            if (keys == null || !isSetAbstractFeatures()) {
+                return Collections.emptySet();
+            }
+            ImmutableSet.Builder<AbstractFeature> features = ImmutableSet.builder();
+            for (String key : keys) {
+                AbstractFeature feature = index.apply(key);
+                if (feature == null && fallback != null) {
+                    feature = fallback.apply(key);
+                }
+                if (feature != null) {
+                    features.add(feature);
+                }
+            }
+            return features.build();
+        }
+
+        private static ImmutableMap<String, AbstractFeature> buildIndex(Collection<AbstractFeature> features,
+                Function<AbstractFeature, String> key) {
+            // the first feature wins if keys are not unique
+            Map<String, AbstractFeature> index = Maps.newHashMapWithExpectedSize(features.size());
+            for (AbstractFeature feature : features) {
+                String value = key.apply(feature);
+                if (!Strings.isNullOrEmpty(value)) {
+                    index.putIfAbsent(value, feature);
+                }
+            }
+            return ImmutableMap.copyOf(index);
+        }
+
+        private static STRtree buildSpatialIndex(Collection<AbstractFeature> features) {
+            STRtree index = new STRtree();
+            for (AbstractFeature feature : features) {
+                if (feature instanceof SamplingFeature && ((SamplingFeature) feature).isSetGeometry()) {
+                    index.insert(((SamplingFeature) feature).getGeometry().getEnvelopeInternal(), feature);
+                }
+            }
+            index.build();
+            return index;
+        }
+
+    }
+
+}
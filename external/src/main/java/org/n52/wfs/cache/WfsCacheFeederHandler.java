@@ -28,8 +28,11 @@
  */
 package org.n52.wfs.cache;
 
+import java.util.Set;
+
 import org.n52.iceland.cache.WritableContentCache;
 import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.gml.AbstractFeature;
 
 public interface WfsCacheFeederHandler {
     
@@ -42,4 +45,26 @@ public interface WfsCacheFeederHandler {
      */
     void updateCache(WritableContentCache cache)
             throws OwsExceptionReport;
+
+    /**
+     * Updates the cached data incrementally. Only features that are not yet
+     * cached are queried, features that are no longer offered are removed.
+     *
+     * @param cache the cache to update
+     *
+     * @throws OwsExceptionReport if an occurs during the cache update
+     */
+    void updateCacheIncrementally(WritableContentCache cache)
+            throws OwsExceptionReport;
+
+    /**
+     * Initializes the cache with persisted features. The features are
+     * prepared like updated features, but may lack properties, so the cache
+     * is marked as partial until the features are replaced by a complete
+     * update.
+     *
+     * @param cache the cache to initialize
+     * @param features the persisted features
+     */
+    void loadCache(WritableContentCache cache, Set<AbstractFeature> features);
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.lifecycle.Constructable;
+import org.n52.iceland.lifecycle.Destroyable;
+import org.n52.iceland.util.http.MediaType;
+import org.n52.wfs.ds.upstream.UpstreamCall;
+import org.n52.wfs.exception.wfs.concrete.UpstreamCapacityExceededException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Asynchronous variant of the {@link HttpClientHandler}. The requests are
+ * executed by the {@link HttpClientHandler} on a bounded pool of threads, so
+ * they pass the same retries, circuit breaker, hedging and load balancing,
+ * and the results are provided as {@link CompletableFuture}s. The calling
+ * thread is not blocked while the SOS is queried.
+ *
+ * Failed requests complete the future exceptionally with their
+ * {@link OwsExceptionReport}. If all threads are busy and the queue is full,
+ * the future is completed exceptionally with an
+ * {@link UpstreamCapacityExceededException} without querying the SOS.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class AsyncHttpClientHandler implements Constructable, Destroyable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncHttpClientHandler.class);
+
+    public static final String THREADS_KEY = "wfs.async.threads";
+
+    public static final String MAX_QUEUED_CALLS_KEY = "wfs.async.maxQueuedCalls";
+
+    private HttpClientHandler httpClientHandler;
+
+    private ThreadPoolExecutor executor;
+
+    private int threads = 16;
+
+    private int maxQueuedCalls = 100;
+
+    @Inject
+    public void setHttpClientHandler(HttpClientHandler httpClientHandler) {
+        this.httpClientHandler = httpClientHandler;
+    }
+
+    /**
+     * @param threads
+     *            the number of threads executing the asynchronous calls
+     */
+    @Setting(THREADS_KEY)
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param maxQueuedCalls
+     *            the number of calls waiting for a thread, further calls are
+     *            rejected
+     */
+    @Setting(MAX_QUEUED_CALLS_KEY)
+    public void setMaxQueuedCalls(int maxQueuedCalls) {
+        this.maxQueuedCalls = Math.max(1, maxQueuedCalls);
+    }
+
+    /**
+     * Execute a GET request against the SOS
+     *
+     * @param parameter
+     *            KVP parameter
+     * @return Future of the response content
+     */
+    public CompletableFuture<String> doGetAsync(Map<String, List<String>> parameter) {
+        return submit(() -> httpClientHandler.doGet(parameter));
+    }
+
+    /**
+     * Execute a GET request against the SOS and pass the response stream to
+     * the handler
+     *
+     * @param parameter
+     *            KVP parameter
+     * @param handler
+     *            Handler to process the response stream
+     * @return Future of the result of the handler
+     */
+    public <T> CompletableFuture<T> doGetAsync(Map<String, List<String>> parameter, SosResponseHandler<T> handler) {
+        return submit(() -> httpClientHandler.doGet(parameter, handler));
+    }
+
+    /**
+     * Execute a POST request against the SOS
+     *
+     * @param content
+     *            Request content
+     * @param contentType
+     *            Request content type
+     * @return Future of the response content
+     */
+    public CompletableFuture<String> doPostAsync(String content, MediaType contentType) {
+        return submit(() -> httpClientHandler.doPost(content, contentType));
+    }
+
+    /**
+     * Execute a POST request for the SOS operation against the SOS and pass
+     * the response stream to the handler
+     *
+     * @param operation
+     *            the SOS operation, may be <code>null</code>
+     * @param content
+     *            Request content
+     * @param contentType
+     *            Request content type
+     * @param handler
+     *            Handler to process the response stream
+     * @return Future of the result of the handler
+     */
+    public <T> CompletableFuture<T> doPostAsync(String operation, String content, MediaType contentType,
+            SosResponseHandler<T> handler) {
+        return submit(() -> httpClientHandler.doPost(operation, content, contentType, handler));
+    }
+
+    /**
+     * Execute the call asynchronously, e.g. a query that passes the response
+     * cache and the bulkheads before it calls the {@link HttpClientHandler}.
+     * A call cancelled before it was started is not executed.
+     *
+     * @param call
+     *            the call to execute
+     * @return Future of the result of the call
+     */
+    public <T> CompletableFuture<T> submit(UpstreamCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    result.complete(call.call());
+                } catch (OwsExceptionReport | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("No thread available for the asynchronous SOS request", e);
+            result.completeExceptionally(new UpstreamCapacityExceededException().causedBy(e)
+                    .withMessage("Too many asynchronous requests to the SOS, the request was rejected!"));
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of calls waiting for a thread
+     */
+    public int getQueuedCalls() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public void init() {
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueuedCalls),
+                new ThreadFactoryBuilder().setNameFormat("sos-async-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+}
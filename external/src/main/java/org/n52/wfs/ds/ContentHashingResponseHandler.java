@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * {@link SosResponseHandler} that hashes (SHA-256) the response content and
+ * only passes it to the delegate if the content changed since the last
+ * handled response. Otherwise the last result is returned without parsing,
+ * e.g. for SOS instances that do not send HTTP validators.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ * @param <T>
+ *            the result type
+ */
+public class ContentHashingResponseHandler<T> implements SosResponseHandler<T> {
+
+    private final SosResponseHandler<T> handler;
+
+    private HashCode hash;
+
+    private T result;
+
+    public ContentHashingResponseHandler(SosResponseHandler<T> handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public synchronized T handle(InputStream content) throws OwsExceptionReport, IOException {
+        byte[] bytes = ByteStreams.toByteArray(content);
+        HashCode hash = Hashing.sha256().hashBytes(bytes);
+        if (hash.equals(this.hash) && result != null) {
+            return result;
+        }
+        T result = handler.handle(new ByteArrayInputStream(bytes));
+        this.hash = hash;
+        this.result = result;
+        return result;
+    }
+
+    /**
+     * Forget the last response, e.g. if its result could not be processed
+     */
+    public synchronized void reset() {
+        this.hash = null;
+        this.result = null;
+    }
+
+}
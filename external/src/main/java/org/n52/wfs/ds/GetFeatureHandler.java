@@ -28,25 +28,44 @@
  */
 package org.n52.wfs.ds;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import javax.inject.Inject;
 import javax.xml.namespace.QName;
 
+import org.apache.xmlbeans.XmlObject;
 import org.joda.time.DateTime;
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
 import org.n52.iceland.exception.ows.NoApplicableCodeException;
 import org.n52.iceland.exception.ows.OwsExceptionReport;
 import org.n52.iceland.exception.ows.concrete.InvalidSridException;
+import org.n52.iceland.ogc.filter.FilterConstants.BinaryLogicOperator;
+import org.n52.iceland.ogc.filter.FilterConstants.ComparisonOperator;
 import org.n52.iceland.ogc.gml.AbstractFeature;
 import org.n52.iceland.ogc.om.OmConstants;
+import org.n52.iceland.ogc.ows.OWSConstants.HelperValues;
 import org.n52.iceland.ogc.sos.Sos2Constants;
+import org.n52.iceland.ogc.sos.SosConstants;
+import org.n52.iceland.util.CollectionHelper;
+import org.n52.iceland.util.JavaHelper;
 import org.n52.iceland.util.http.MediaTypes;
 import org.n52.ogc.pilot.PilotConstants;
 import org.n52.ogc.pilot.PilotFeature;
 import org.n52.ogc.wfs.AbstractFeatureMember;
+import org.n52.ogc.wfs.EncodedFeatureMember;
 import org.n52.ogc.wfs.WfsConstants;
 import org.n52.ogc.wfs.WfsFeatureCollection;
+import org.n52.ogc.wfs.WfsMember;
 import org.n52.ogc.wfs.WfsQuery;
+import org.n52.sos.ogc.filter.BinaryLogicFilter;
+import org.n52.sos.ogc.filter.ComparisonFilter;
+import org.n52.sos.ogc.filter.Filter;
 import org.n52.sos.ogc.filter.SpatialFilter;
 import org.n52.sos.ogc.om.features.FeatureCollection;
 import org.n52.sos.ogc.om.features.SfConstants;
@@ -58,16 +77,22 @@ import org.n52.sos.response.GetObservationResponse;
 import org.n52.sos.util.CodingHelper;
 import org.n52.sos.util.GeometryHandler;
 import org.n52.sos.util.JTSHelper;
-import org.n52.sos.util.XmlHelper;
 import org.n52.wfs.cache.InMemoryCacheImpl;
+import org.n52.wfs.ds.upstream.Bulkheads;
+import org.n52.wfs.ds.upstream.RequestCoalescer;
+import org.n52.wfs.ds.upstream.ResponseCache;
+import org.n52.wfs.ds.upstream.UpstreamCall;
+import org.n52.wfs.ds.upstream.UpstreamExecutor;
+import org.n52.wfs.ds.upstream.WeightedResponse;
 import org.n52.wfs.request.GetFeatureRequest;
 import org.n52.wfs.response.GetFeatureResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.vividsolutions.jts.geom.Envelope;
 
 /**
  * WFS DAO class for GetFeature operation
@@ -77,21 +102,55 @@ import com.google.common.collect.Sets;
  * @since 1.0.0
  *
  */
+@Configurable
 public class GetFeatureHandler extends AbstractConvertingGetFeatureHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(GetFeatureHandler.class);
 
+    public static final String ENCODE_CACHED_FEATURES_KEY = "wfs.cache.encodeFeatures";
+
+    private static final String FEATURE_OF_INTEREST = "om:featureOfInterest";
+
     @Inject
     private HttpClientHandler httpClientHandler;
-    
+
+    @Inject
+    private AsyncHttpClientHandler asyncHttpClientHandler;
+
     @Inject
     private GetFeatureOfInterestQuerier getFeatureOfInterestQuerier;
 
+    @Inject
+    private RequestCoalescer requestCoalescer;
+
+    @Inject
+    private Bulkheads bulkheads;
+
+    @Inject
+    private ResponseCache responseCache;
+
+    @Inject
+    private UpstreamExecutor upstreamExecutor;
+
+    @Inject
+    private GetObservationRequestSplitter getObservationRequestSplitter;
+
+    @Inject
+    private ObservationCache observationCache;
+
+    private boolean encodeCachedFeatures = true;
+
     public GetFeatureHandler() {
         super(WfsConstants.WFS);
     }
 
+    @Setting(ENCODE_CACHED_FEATURES_KEY)
+    public void setEncodeCachedFeatures(boolean encodeCachedFeatures) {
+        this.encodeCachedFeatures = encodeCachedFeatures;
+    }
+
     @Override
+    @SuppressWarnings("rawtypes")
     public GetFeatureResponse getFeatures(GetFeatureRequest request) throws OwsExceptionReport {
         GetFeatureResponse response = new GetFeatureResponse();
         response.setService(WfsConstants.WFS);
@@ -99,41 +158,180 @@ public class GetFeatureHandler extends AbstractConvertingGetFeatureHandler {
         WfsFeatureCollection featureCollection =
                 new WfsFeatureCollection(new DateTime(), WfsConstants.NUMBER_MATCHED_UNKNOWN);
         response.setFeatureCollection(featureCollection);
+        // the queries and type names are independent and queried concurrently,
+        // the members are added in the order of the queries and type names
+        List<UpstreamCall<List<WfsMember>>> calls = Lists.newArrayList();
         for (WfsQuery wfsQuery : request.getQueries()) {
             SpatialFilter spatialFilter = checkForSpatialFilter(request, wfsQuery);
             for (QName typeName : wfsQuery.getTypeNames()) {
                 QName checkedTypeName = checkTypeName(typeName);
                 if (checkedTypeName != null) {
-                    if (PilotConstants.QN_PILOT_PILOT_FEATURE.equals(checkedTypeName)) {
-                        Set<AbstractFeature> features = null;
-                        if (getWfsCache().isSetAbstractFeatures()) {
-                            features = getWfsCache().getAbstractFeatures();
-                        } else {
-                            GetFeatureOfInterestRequest sosRequest = convertWfsGetFeatureToSosGetFeatureOfInterestRequest(request);
-                            GetFeatureOfInterestResponse getFeatureOfInterestRequestResponse = getFeatureOfInterestQuerier.getGetFeatureOfInterestRequestResponse(sosRequest);
-                            features = getFeatures(getFeatureOfInterestRequestResponse);
-                        }
-                        convertSosGetFeatureOfInterestRequestToPilotFeaturesWfsGetFeature(features, featureCollection, request.getCount(), spatialFilter);
-                    } else if (SfConstants.QN_SAMS_20_SPATIAL_SAMPLING_FEATURE.equals(checkedTypeName)) {
-                        Set<AbstractFeature> features = null;
-                        if (getWfsCache().isSetAbstractFeatures()) {
-                            features = getWfsCache().getAbstractFeatures();
-                        } else {
-                            GetFeatureOfInterestRequest sosRequest = convertWfsGetFeatureToSosGetFeatureOfInterestRequest(request);
-                            GetFeatureOfInterestResponse getFeatureOfInterestRequestResponse = getFeatureOfInterestQuerier.getGetFeatureOfInterestRequestResponse(sosRequest);
-                            features = getFeatures(getFeatureOfInterestRequestResponse);
-                        }
-                        convertSosGetFeatureOfInterestRequestToWfsGetFeature(features, featureCollection);
-                    } else if (OmConstants.QN_OM_20_OBSERVATION.equals(checkedTypeName)) {
-                        GetObservationRequest sosRequest = convertWfsGetFeatureToSosGetObservation(request);
-                        convertSosGetObservationToWfsGetFeature((GetObservationResponse) getGetObservationResponse(sosRequest), featureCollection);
-                    }
+                    calls.add(prepareQuery(request, wfsQuery, checkedTypeName, spatialFilter));
                 }
             }
         }
+        if (!request.isSetQueries() && request.isSetResourceIds()) {
+            // RESOURCEID without TYPENAMES, the resource ids are resolved from
+            // the cached sampling features
+            calls.add(prepareQuery(request, null, SfConstants.QN_SAMS_20_SPATIAL_SAMPLING_FEATURE, null));
+        }
+        for (List<WfsMember> members : upstreamExecutor.invokeAll(calls)) {
+            featureCollection.addMember(members);
+        }
         return response;
     }
 
+    /**
+     * Convert the request for the type name and prepare the query. The
+     * conversion modifies the filters of the WFS request and is therefore
+     * done in the calling thread, the returned query may be executed
+     * concurrently.
+     */
+    @SuppressWarnings("rawtypes")
+    private UpstreamCall<List<WfsMember>> prepareQuery(GetFeatureRequest request, WfsQuery wfsQuery,
+            QName checkedTypeName, SpatialFilter spatialFilter) throws OwsExceptionReport {
+        WfsFeatureCollection featureCollection =
+                new WfsFeatureCollection(new DateTime(), WfsConstants.NUMBER_MATCHED_UNKNOWN);
+        if (PilotConstants.QN_PILOT_PILOT_FEATURE.equals(checkedTypeName)) {
+            // one snapshot for the whole query, reading it needs no copy
+            InMemoryCacheImpl.Snapshot snapshot = getWfsCache().getSnapshot();
+            UpstreamCall<Set<AbstractFeature>> features =
+                    prepareFeatureQuery(snapshot, request, wfsQuery, spatialFilter);
+            return () -> {
+                convertSosGetFeatureOfInterestRequestToPilotFeaturesWfsGetFeature(snapshot, features.call(), featureCollection, request.getCount(), spatialFilter);
+                return featureCollection.getMember();
+            };
+        } else if (SfConstants.QN_SAMS_20_SPATIAL_SAMPLING_FEATURE.equals(checkedTypeName)) {
+            InMemoryCacheImpl.Snapshot snapshot = getWfsCache().getSnapshot();
+            UpstreamCall<Set<AbstractFeature>> features = prepareFeatureQuery(snapshot, request, wfsQuery, null);
+            return () -> {
+                addSamplingFeatures(snapshot, features.call(), featureCollection);
+                return featureCollection.getMember();
+            };
+        } else if (OmConstants.QN_OM_20_OBSERVATION.equals(checkedTypeName)) {
+            GetObservationRequest sosRequest = convertWfsGetFeatureToSosGetObservation(request);
+            return () -> {
+                if (observationCache.isCacheable(sosRequest)) {
+                    convertSosGetObservationToWfsGetFeature(observationCache.getObservations(sosRequest,
+                            this::queryObservationResponses, this::decodeObservations), featureCollection);
+                } else {
+                    convertSosGetObservationToWfsGetFeature(queryObservations(sosRequest), featureCollection);
+                }
+                return featureCollection.getMember();
+            };
+        }
+        return () -> featureCollection.getMember();
+    }
+
+    /**
+     * Query the observations of the request split into chunks, see
+     * {@link GetObservationRequestSplitter}. The chunks are queried
+     * concurrently, each upstream call takes its own slot of the
+     * GetObservation bulkhead.
+     */
+    private GetObservationResponse queryObservations(GetObservationRequest sosRequest) throws OwsExceptionReport {
+        List<GetObservationRequest> chunks = getObservationRequestSplitter.split(sosRequest);
+        List<UpstreamCall<GetObservationResponse>> calls = Lists.newArrayListWithCapacity(chunks.size());
+        for (GetObservationRequest chunk : chunks) {
+            calls.add(() -> getGetObservationResponse(chunk));
+        }
+        GetObservationResponse response = new GetObservationResponse();
+        response.setService(sosRequest.getService());
+        response.setVersion(sosRequest.getVersion());
+        response.setObservationCollection(
+                getObservationRequestSplitter.merge(chunks, upstreamExecutor.invokeAll(calls)));
+        return response;
+    }
+
+    /**
+     * Query the parsed responses of the (split) gap requests of the
+     * {@link ObservationCache} concurrently
+     */
+    private List<XmlObject> queryObservationResponses(List<GetObservationRequest> requests)
+            throws OwsExceptionReport {
+        List<UpstreamCall<XmlObject>> calls = Lists.newArrayListWithCapacity(requests.size());
+        for (GetObservationRequest request : requests) {
+            calls.add(() -> getGetObservationXml(request, new XmlResponseHandler()));
+        }
+        return upstreamExecutor.invokeAll(calls);
+    }
+
+    /**
+     * Prepare the query of the features from the cache or the SOS. Resource
+     * ids and featureOfInterest identifier filters are resolved from the
+     * identifier indexes of the cache. If a spatial filter is given, only the
+     * candidates from the spatial index of the cache are returned, they have
+     * to be checked against the filter.
+     */
+    private UpstreamCall<Set<AbstractFeature>> prepareFeatureQuery(InMemoryCacheImpl.Snapshot snapshot,
+            GetFeatureRequest request, WfsQuery wfsQuery, SpatialFilter spatialFilter) throws OwsExceptionReport {
+        if (snapshot.isSetAbstractFeatures()) {
+            if (request.isSetResourceIds()) {
+                Set<AbstractFeature> features = snapshot.getAbstractFeaturesByResourceId(request.getResourceIds());
+                return () -> features;
+            }
+            Set<String> identifiers = getFeatureIdentifiers(wfsQuery);
+            if (identifiers != null) {
+                Set<AbstractFeature> features = snapshot.getAbstractFeaturesByIdentifier(identifiers);
+                return () -> features;
+            }
+            if (spatialFilter != null && spatialFilter.getGeometry() != null) {
+                // the filter is checked against the pilot feature geometries
+                // with switched axis order
+                Envelope envelope = spatialFilter.getGeometry().getEnvelopeInternal();
+                Envelope switched =
+                        new Envelope(envelope.getMinY(), envelope.getMaxY(), envelope.getMinX(), envelope.getMaxX());
+                return () -> snapshot.getAbstractFeatures(switched);
+            }
+            return () -> snapshot.getAbstractFeatures();
+        }
+        GetFeatureOfInterestRequest sosRequest = convertWfsGetFeatureToSosGetFeatureOfInterestRequest(request);
+        if (request.isSetResourceIds() && CollectionHelper.isEmpty(sosRequest.getFeatureIdentifiers())) {
+            // without cache the resource ids can only be matched as identifiers
+            sosRequest.setFeatureIdentifiers(Lists.newArrayList(request.getResourceIds()));
+        }
+        return () -> getFeatures(getFeatureOfInterestQuerier.getGetFeatureOfInterestRequestResponse(sosRequest));
+    }
+
+    /**
+     * Get the identifiers of a selection clause that only selects features by
+     * identifier, i.e. a featureOfInterest PropertyIsEqualTo filter or an Or
+     * of these filters.
+     *
+     * @return the identifiers or <code>null</code> if the selection clause
+     *         does not only select by identifier
+     */
+    private Set<String> getFeatureIdentifiers(WfsQuery wfsQuery) {
+        if (wfsQuery != null && wfsQuery.isSetSelectionClause()) {
+            Set<String> identifiers = Sets.newHashSet();
+            if (addFeatureIdentifiers(wfsQuery.getSelectionClause(), identifiers)) {
+                return identifiers;
+            }
+        }
+        return null;
+    }
+
+    private boolean addFeatureIdentifiers(Object filter, Set<String> identifiers) {
+        if (filter instanceof ComparisonFilter) {
+            ComparisonFilter comparisonFilter = (ComparisonFilter) filter;
+            if (ComparisonOperator.PropertyIsEqualTo.equals(comparisonFilter.getOperator())
+                    && FEATURE_OF_INTEREST.equals(comparisonFilter.getValueReference())
+                    && comparisonFilter.getValue() != null) {
+                identifiers.add(comparisonFilter.getValue());
+                return true;
+            }
+        } else if (filter instanceof BinaryLogicFilter
+                && BinaryLogicOperator.Or.equals(((BinaryLogicFilter) filter).getOperator())) {
+            for (Filter<?> predicate : ((BinaryLogicFilter) filter).getFilterPredicates()) {
+                if (!addFeatureIdentifiers(predicate, identifiers)) {
+                    return false;
+                }
+            }
+            return !identifiers.isEmpty();
+        }
+        return false;
+    }
+
     private Set<AbstractFeature> getFeatures(GetFeatureOfInterestResponse sosResponse) {
         Set<AbstractFeature> features = Sets.newHashSet();
         if (sosResponse.getAbstractFeature() != null) {
@@ -156,28 +354,151 @@ public class GetFeatureHandler extends AbstractConvertingGetFeatureHandler {
         return features;
     }
 
-    private void convertSosGetFeatureOfInterestRequestToPilotFeaturesWfsGetFeature(
+    /**
+     * Add the sampling features to the collection, cached features that are
+     * already encoded are added with their encoding
+     */
+    private void addSamplingFeatures(InMemoryCacheImpl.Snapshot snapshot, Set<AbstractFeature> features,
+            WfsFeatureCollection featureCollection) {
+        Set<AbstractFeature> notEncoded = Sets.newHashSet();
+        for (AbstractFeature feature : features) {
+            XmlObject encoded = snapshot.getEncodedFeature(SfConstants.QN_SAMS_20_SPATIAL_SAMPLING_FEATURE, feature);
+            if (encoded != null) {
+                featureCollection.addMember(new EncodedFeatureMember(feature, encoded));
+            } else {
+                notEncoded.add(feature);
+            }
+        }
+        convertSosGetFeatureOfInterestRequestToWfsGetFeature(notEncoded, featureCollection);
+    }
+
+    private void convertSosGetFeatureOfInterestRequestToPilotFeaturesWfsGetFeature(InMemoryCacheImpl.Snapshot snapshot,
             Set<AbstractFeature> features, WfsFeatureCollection featureCollection, int count, SpatialFilter spatialFilter) throws InvalidSridException {
         for (AbstractFeature abstractFeature : features) {
             if (abstractFeature instanceof SamplingFeature) {
-                PilotFeature pilotFeature = convertToPilotFeature(checkGeometry(abstractFeature));
+                PilotFeature pilotFeature = getPilotFeature(snapshot, abstractFeature);
                 if (pilotFeature != null) {
                     if (spatialFilter != null) {
                         if (GeometryHandler.getInstance().featureIsInFilter(pilotFeature.getGeometry(), Lists.newArrayList(spatialFilter.getGeometry()))) {
-                            featureCollection.addMember(new AbstractFeatureMember(pilotFeature));
+                            featureCollection.addMember(createPilotFeatureMember(snapshot, abstractFeature, pilotFeature));
                         }
                     } else {
-                        featureCollection.addMember(new AbstractFeatureMember(pilotFeature));
+                        featureCollection.addMember(createPilotFeatureMember(snapshot, abstractFeature, pilotFeature));
                     }
                 }
             }
         }
     }
 
+    private AbstractFeatureMember createPilotFeatureMember(InMemoryCacheImpl.Snapshot snapshot,
+            AbstractFeature abstractFeature, PilotFeature pilotFeature) {
+        XmlObject encoded = snapshot.getEncodedFeature(PilotConstants.QN_PILOT_PILOT_FEATURE, abstractFeature);
+        if (encoded != null) {
+            return new EncodedFeatureMember(pilotFeature, encoded);
+        }
+        return new AbstractFeatureMember(pilotFeature);
+    }
+
+    /**
+     * Get the pilot:PilotFeature of a feature, the conversion of a cached
+     * feature is shared
+     */
+    private PilotFeature getPilotFeature(InMemoryCacheImpl.Snapshot snapshot, AbstractFeature abstractFeature)
+            throws InvalidSridException {
+        AbstractFeature converted = snapshot.getConvertedFeature(PilotConstants.QN_PILOT_PILOT_FEATURE, abstractFeature);
+        if (converted instanceof PilotFeature) {
+            return (PilotFeature) converted;
+        }
+        return convertToPilotFeature(checkGeometry(abstractFeature));
+    }
+
+    /**
+     * Normalize the geometries of features before they are cached, so the
+     * cached features are not modified by requests
+     *
+     * @param features
+     *            the features to cache
+     */
+    public void normalizeFeatures(Collection<AbstractFeature> features) {
+        for (AbstractFeature feature : features) {
+            checkGeometry(feature);
+        }
+    }
+
+    /**
+     * Convert the cached features to pilot:PilotFeature and encode them as
+     * sams:SF_SpatialSamplingFeature and pilot:PilotFeature, so GetFeature
+     * responses only select and copy the prepared members. Features that are
+     * already prepared in the current snapshot are skipped. Columnar caches
+     * are neither converted nor encoded to keep their footprint small. Called
+     * after each cache update.
+     *
+     * @param cache
+     *            the updated cache
+     */
+    public void prepareFeatures(InMemoryCacheImpl cache) {
+        InMemoryCacheImpl.Snapshot snapshot = cache.getSnapshot();
+        if (!snapshot.isColumnar()) {
+            Map<String, AbstractFeature> pilotFeatures = Maps.newHashMap();
+            for (AbstractFeature feature : snapshot.getAbstractFeatures()) {
+                if (feature instanceof SamplingFeature
+                        && snapshot.getConvertedFeature(PilotConstants.QN_PILOT_PILOT_FEATURE, feature) == null) {
+                    try {
+                        pilotFeatures.put(feature.getIdentifier(), convertToPilotFeature(feature));
+                    } catch (InvalidSridException e) {
+                        LOGGER.debug("Error while converting cached feature: {}", feature.getIdentifier(), e);
+                    }
+                }
+            }
+            if (!pilotFeatures.isEmpty()) {
+                if (!cache.setConvertedFeatures(snapshot,
+                        Collections.singletonMap(PilotConstants.QN_PILOT_PILOT_FEATURE, pilotFeatures))) {
+                    LOGGER.debug("Cache was updated while converting the features, the converted features are discarded");
+                    return;
+                }
+                snapshot = cache.getSnapshot();
+            }
+        }
+        if (encodeCachedFeatures && !snapshot.isColumnar()) {
+            encodeFeatures(cache, snapshot);
+        }
+    }
+
+    private void encodeFeatures(InMemoryCacheImpl cache, InMemoryCacheImpl.Snapshot snapshot) {
+        Map<QName, Map<String, XmlObject>> encoded = Maps.newHashMap();
+        encoded.put(SfConstants.QN_SAMS_20_SPATIAL_SAMPLING_FEATURE, Maps.<String, XmlObject> newHashMap());
+        encoded.put(PilotConstants.QN_PILOT_PILOT_FEATURE, Maps.<String, XmlObject> newHashMap());
+        Map<HelperValues, String> additionalValues = Maps.newHashMap();
+        additionalValues.put(HelperValues.PROPERTY_TYPE, null);
+        for (AbstractFeature feature : snapshot.getAbstractFeatures()) {
+            if (feature instanceof SamplingFeature) {
+                try {
+                    if (snapshot.getEncodedFeature(SfConstants.QN_SAMS_20_SPATIAL_SAMPLING_FEATURE, feature) == null) {
+                        encoded.get(SfConstants.QN_SAMS_20_SPATIAL_SAMPLING_FEATURE).put(feature.getIdentifier(),
+                                CodingHelper.encodeObjectToXml(SfConstants.NS_SAMS, feature, additionalValues));
+                    }
+                    if (snapshot.getEncodedFeature(PilotConstants.QN_PILOT_PILOT_FEATURE, feature) == null) {
+                        encoded.get(PilotConstants.QN_PILOT_PILOT_FEATURE).put(feature.getIdentifier(),
+                                CodingHelper.encodeObjectToXml(PilotConstants.NS_PILOT,
+                                        getPilotFeature(snapshot, feature), additionalValues));
+                    }
+                } catch (OwsExceptionReport e) {
+                    LOGGER.debug("Error while encoding cached feature: {}", feature.getIdentifier(), e);
+                }
+            }
+        }
+        if (!cache.setEncodedFeatures(snapshot, encoded)) {
+            LOGGER.debug("Cache was updated while encoding the features, the encoded features are discarded");
+        }
+    }
+
     private PilotFeature convertToPilotFeature(AbstractFeature abstractFeature) throws InvalidSridException {
         if (abstractFeature instanceof SamplingFeature) {
-            PilotFeature pilotFeature =
-                    new PilotFeature(abstractFeature.getIdentifierCodeWithAuthority(), abstractFeature.getGmlId());
+            // the gml:id is set here, otherwise the encoder sets it on the
+            // possibly shared feature
+            String gmlId = abstractFeature.isSetGmlID() ? abstractFeature.getGmlId()
+                    : "pf_" + JavaHelper.generateID(abstractFeature.getIdentifier());
+            PilotFeature pilotFeature = new PilotFeature(abstractFeature.getIdentifierCodeWithAuthority(), gmlId);
             if (abstractFeature.isSetName()) {
                 pilotFeature.setName(abstractFeature.getName());
             }
@@ -195,19 +516,68 @@ public class GetFeatureHandler extends AbstractConvertingGetFeatureHandler {
 
     private GetObservationResponse getGetObservationResponse(GetObservationRequest sosRequest)
             throws OwsExceptionReport {
-        String sosResponse = httpClientHandler.doPost(CodingHelper.encodeObjectToXml(Sos2Constants.NS_SOS_20, sosRequest).xmlText(),
-                MediaTypes.APPLICATION_XML);
-        if (!Strings.isNullOrEmpty(sosResponse)) {
-            LOGGER.debug("SOS response: {}", sosResponse);
-            Object object = CodingHelper.decodeXmlElement(XmlHelper.parseXmlString(sosResponse));
-            if (object instanceof GetObservationResponse) {
-                return (GetObservationResponse) object;
-            } else if (object instanceof OwsExceptionReport) {
-                throw new NoApplicableCodeException().causedBy((OwsExceptionReport)object).withMessage("error");
-            }
-            throw new NoApplicableCodeException().withMessage("Error while processing GetFeature!");
-        }
-        throw new NoApplicableCodeException().withMessage("Error while querying GetCapabilities from SOS! Response is null!");
+        XmlResponseHandler handler = new XmlResponseHandler();
+        XmlObject sosResponse = getGetObservationXml(sosRequest, handler);
+        // only a response received by this request and not cached is unshared
+        boolean shared = sosResponse != handler.getResponse()
+                || responseCache.isCached(SosConstants.Operations.GetObservation.name());
+        return checkGetObservationResponse(XmlResponseHandler.decode(sosResponse, shared));
+    }
+
+    /**
+     * Query the SOS GetObservation asynchronously, the calling thread is not
+     * blocked. The query passes the response cache, the request coalescing
+     * and the bulkhead like a synchronous query.
+     *
+     * @param sosRequest
+     *            SOS GetObservation request
+     * @return Future of the decoded SOS response
+     */
+    protected CompletableFuture<GetObservationResponse> getGetObservationResponseAsync(
+            GetObservationRequest sosRequest) {
+        return asyncHttpClientHandler.submit(() -> getGetObservationResponse(sosRequest));
+    }
+
+    /**
+     * @param handler
+     *            the handler to parse the response if this request queries
+     *            the SOS itself
+     * @return the parsed response, it may be shared
+     */
+    private XmlObject getGetObservationXml(GetObservationRequest sosRequest, XmlResponseHandler handler)
+            throws OwsExceptionReport {
+        String request = CodingHelper.encodeObjectToXml(Sos2Constants.NS_SOS_20, sosRequest).xmlText();
+        return responseCache.get(SosConstants.Operations.GetObservation.name(), request,
+                () -> requestCoalescer.execute(request, () -> queryObservations(request, handler)));
+    }
+
+    /**
+     * Decode a copy of the possibly shared response
+     */
+    private GetObservationResponse decodeObservations(XmlObject sosResponse) throws OwsExceptionReport {
+        return checkGetObservationResponse(XmlResponseHandler.decode(sosResponse));
+    }
+
+    private WeightedResponse<XmlObject> queryObservations(String request, XmlResponseHandler handler)
+            throws OwsExceptionReport {
+        // the slot is taken per upstream call, below the response cache and
+        // the coalescer, so callers answered by the cache or waiting for a
+        // coalesced call hold no slot and background revalidations take one
+        XmlObject sosResponse = bulkheads.execute(SosConstants.Operations.GetObservation.name(),
+                () -> httpClientHandler.doPost(SosConstants.Operations.GetObservation.name(), request,
+                        MediaTypes.APPLICATION_XML, handler));
+        // the cache holds the parsed response and the request as key
+        return new WeightedResponse<>(sosResponse, handler.getParsedSize() + 2L * request.length(),
+                !XmlResponseHandler.isExceptionReport(sosResponse));
+    }
+
+    private GetObservationResponse checkGetObservationResponse(Object object) throws OwsExceptionReport {
+        if (object instanceof GetObservationResponse) {
+            return (GetObservationResponse) object;
+        } else if (object instanceof OwsExceptionReport) {
+            throw new NoApplicableCodeException().causedBy((OwsExceptionReport)object).withMessage("error");
+        }
+        throw new NoApplicableCodeException().withMessage("Error while processing GetFeature!");
     }
     
     protected QName checkTypeName(QName typeName) {
@@ -29,24 +29,30 @@
 package org.n52.wfs.ds;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import javax.inject.Inject;
 
+import org.apache.xmlbeans.XmlObject;
+
 import org.n52.iceland.exception.ows.NoApplicableCodeException;
 import org.n52.iceland.exception.ows.OwsExceptionReport;
 import org.n52.iceland.ogc.gml.AbstractFeature;
 import org.n52.iceland.ogc.sos.Sos2Constants;
+import org.n52.iceland.ogc.sos.SosConstants;
 import org.n52.iceland.util.http.MediaTypes;
 import org.n52.sos.ogc.om.features.FeatureCollection;
 import org.n52.sos.ogc.om.features.samplingFeatures.SamplingFeature;
 import org.n52.sos.request.GetFeatureOfInterestRequest;
 import org.n52.sos.response.GetFeatureOfInterestResponse;
 import org.n52.sos.util.CodingHelper;
-import org.n52.sos.util.XmlHelper;
+import org.n52.wfs.ds.upstream.Bulkheads;
+import org.n52.wfs.ds.upstream.RequestCoalescer;
+import org.n52.wfs.ds.upstream.ResponseCache;
+import org.n52.wfs.ds.upstream.WeightedResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Strings;
 import com.google.common.collect.Sets;
 
 public class GetFeatureOfInterestQuerier {
@@ -56,23 +62,63 @@ public class GetFeatureOfInterestQuerier {
     @Inject
     private HttpClientHandler httpClientHandler;
 
+    @Inject
+    private AsyncHttpClientHandler asyncHttpClientHandler;
+
+    @Inject
+    private RequestCoalescer requestCoalescer;
+
+    @Inject
+    private Bulkheads bulkheads;
+
+    @Inject
+    private ResponseCache responseCache;
+
     public GetFeatureOfInterestResponse getGetFeatureOfInterestRequestResponse(GetFeatureOfInterestRequest sosRequest)
             throws OwsExceptionReport {
-        String sosResponse =
-                httpClientHandler.doPost(CodingHelper.encodeObjectToXml(Sos2Constants.NS_SOS_20, sosRequest).xmlText(),
-                        MediaTypes.APPLICATION_XML);
-        if (!Strings.isNullOrEmpty(sosResponse)) {
-            LOGGER.debug("SOS response: {}", sosResponse);
-            Object object = CodingHelper.decodeXmlElement(XmlHelper.parseXmlString(sosResponse));
-            if (object instanceof GetFeatureOfInterestResponse) {
-                return (GetFeatureOfInterestResponse) object;
-            } else if (object instanceof OwsExceptionReport) {
-                throw new NoApplicableCodeException().causedBy((OwsExceptionReport) object).withMessage("error");
-            }
-            throw new NoApplicableCodeException().withMessage("Error while processing GetFeature!");
+        String request = CodingHelper.encodeObjectToXml(Sos2Constants.NS_SOS_20, sosRequest).xmlText();
+        XmlResponseHandler handler = new XmlResponseHandler();
+        XmlObject sosResponse = responseCache.get(SosConstants.Operations.GetFeatureOfInterest.name(), request,
+                () -> requestCoalescer.execute(request, () -> query(request, handler)));
+        // the parsed response may be shared, then each request decodes its own
+        // copy, only a response received by this request and not cached is
+        // decoded directly
+        boolean shared = sosResponse != handler.getResponse()
+                || responseCache.isCached(SosConstants.Operations.GetFeatureOfInterest.name());
+        return checkGetFeatureOfInterestResponse(XmlResponseHandler.decode(sosResponse, shared));
+    }
+
+    /**
+     * Query the SOS asynchronously, the calling thread is not blocked. The
+     * query passes the response cache, the request coalescing and the
+     * bulkhead like a synchronous query.
+     *
+     * @param sosRequest
+     *            SOS GetFeatureOfInterest request
+     * @return Future of the decoded SOS response
+     */
+    public CompletableFuture<GetFeatureOfInterestResponse> getGetFeatureOfInterestRequestResponseAsync(
+            GetFeatureOfInterestRequest sosRequest) {
+        return asyncHttpClientHandler.submit(() -> getGetFeatureOfInterestRequestResponse(sosRequest));
+    }
+
+    private WeightedResponse<XmlObject> query(String request, XmlResponseHandler handler)
+            throws OwsExceptionReport {
+        XmlObject sosResponse = bulkheads.execute(SosConstants.Operations.GetFeatureOfInterest.name(),
+                () -> httpClientHandler.doPost(SosConstants.Operations.GetFeatureOfInterest.name(), request,
+                        MediaTypes.APPLICATION_XML, handler));
+        // the cache holds the parsed response and the request as key
+        return new WeightedResponse<>(sosResponse, handler.getParsedSize() + 2L * request.length(),
+                !XmlResponseHandler.isExceptionReport(sosResponse));
+    }
+
+    private GetFeatureOfInterestResponse checkGetFeatureOfInterestResponse(Object object) throws OwsExceptionReport {
+        if (object instanceof GetFeatureOfInterestResponse) {
+            return (GetFeatureOfInterestResponse) object;
+        } else if (object instanceof OwsExceptionReport) {
+            throw new NoApplicableCodeException().causedBy((OwsExceptionReport) object).withMessage("error");
         }
-        throw new NoApplicableCodeException()
-                .withMessage("Error while querying GetCapabilities from SOS! Response is null!");
+        throw new NoApplicableCodeException().withMessage("Error while processing GetFeature!");
     }
 
     public Set<AbstractFeature> queryAndGetFeatures(GetFeatureOfInterestRequest sosRequest) throws OwsExceptionReport {
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.joda.time.DateTime;
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+import org.n52.iceland.ogc.filter.FilterConstants.TimeOperator;
+import org.n52.iceland.ogc.gml.time.TimePeriod;
+import org.n52.sos.ogc.filter.TemporalFilter;
+import org.n52.sos.ogc.om.OmObservation;
+import org.n52.sos.request.GetObservationRequest;
+import org.n52.sos.response.GetObservationResponse;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Splits large SOS GetObservation requests into smaller requests that can be
+ * queried concurrently. A request with a single <code>During</code> temporal
+ * filter is split into consecutive sub-periods, either of a fixed duration
+ * or a fixed number of chunks.
+ *
+ * A <code>During</code> filter only matches observations whose phenomenon
+ * time lies completely within the period, excluding its bounds. The filters
+ * of adjacent sub-periods therefore overlap: a sub-period starting at
+ * <code>t</code> is queried from <code>t - 1ms</code> and the previous one up
+ * to <code>t</code>, so observations at the boundary are returned. An
+ * observation with a phenomenon time period crossing the end of a sub-period
+ * would not be returned by any request, so the filter of each sub-period is
+ * also extended by the configured maximum observation duration.
+ * {@link #merge(List, List)} keeps an observation only from the sub-period its
+ * phenomenon time starts in. Observations longer than the maximum duration
+ * may still be lost, so temporal splitting should only be enabled for SOS
+ * with time instant or short observations.
+ *
+ * Long identifier lists, e.g. hundreds of procedures from an <code>Or</code>
+ * filter, are split into batches. Only the longest of the procedure,
+ * observedProperty and featureOfInterest lists is split. The identifiers are
+ * de-duplicated first, so the batches are disjoint and no observation is
+ * returned by more than one request.
+ *
+ * The requests are returned in chronological order, so concatenating the
+ * responses keeps the observations in time order.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class GetObservationRequestSplitter {
+
+    public static final String CHUNK_DURATION_KEY = "wfs.splitting.temporal.chunkDuration";
+
+    public static final String CHUNK_COUNT_KEY = "wfs.splitting.temporal.chunkCount";
+
+    public static final String BATCH_SIZE_KEY = "wfs.splitting.identifiers.batchSize";
+
+    public static final String MAX_OBSERVATION_DURATION_KEY = "wfs.splitting.temporal.maxObservationDuration";
+
+    private static final long MINUTE = 60 * 1000;
+
+    private static final int MAX_CHUNKS = 100;
+
+    private long chunkDuration;
+
+    private int chunkCount;
+
+    private int batchSize = 50;
+
+    private long maxObservationDuration;
+
+    /**
+     * @param chunkDuration
+     *            the duration of a sub-period in minutes, <code>0</code> to
+     *            split by chunk count
+     */
+    @Setting(CHUNK_DURATION_KEY)
+    public void setChunkDuration(int chunkDuration) {
+        this.chunkDuration = Math.max(0, chunkDuration) * MINUTE;
+    }
+
+    /**
+     * @param chunkCount
+     *            the number of sub-periods if no chunk duration is set,
+     *            <code>0</code> or <code>1</code> to disable splitting
+     */
+    @Setting(CHUNK_COUNT_KEY)
+    public void setChunkCount(int chunkCount) {
+        this.chunkCount = Math.max(0, Math.min(MAX_CHUNKS, chunkCount));
+    }
+
+    /**
+     * @param batchSize
+     *            the maximum number of identifiers per request,
+     *            <code>0</code> to disable splitting
+     */
+    @Setting(BATCH_SIZE_KEY)
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(0, batchSize);
+    }
+
+    /**
+     * @param maxObservationDuration
+     *            the maximum duration of an observation with a phenomenon
+     *            time period in minutes, <code>0</code> if the SOS only
+     *            provides time instant observations
+     */
+    @Setting(MAX_OBSERVATION_DURATION_KEY)
+    public void setMaxObservationDuration(int maxObservationDuration) {
+        this.maxObservationDuration = Math.max(0, maxObservationDuration) * MINUTE;
+    }
+
+    /**
+     * Split the request
+     *
+     * @param request
+     *            the SOS GetObservation request
+     * @return the requests to query, the request itself if it is not split
+     */
+    public List<GetObservationRequest> split(GetObservationRequest request) {
+        List<GetObservationRequest> requests = Lists.newArrayList();
+        for (GetObservationRequest chunk : splitTemporal(request)) {
+            requests.addAll(splitIdentifiers(chunk));
+        }
+        return requests;
+    }
+
+    /**
+     * Merge the responses of the split requests. An observation returned for
+     * more than one sub-period because of the overlapping filters is only kept
+     * from the sub-period its phenomenon time starts in, i.e. the last
+     * sub-period whose (exclusive) filter start is before it.
+     *
+     * @param requests
+     *            the split requests
+     * @param responses
+     *            the responses in the order of the requests
+     * @return the observations in the order of the requests
+     */
+    public List<OmObservation> merge(List<GetObservationRequest> requests, List<GetObservationResponse> responses) {
+        TreeSet<Long> starts = Sets.newTreeSet();
+        for (GetObservationRequest request : requests) {
+            Long start = getStart(request);
+            if (start != null) {
+                starts.add(start);
+            }
+        }
+        List<OmObservation> observations = Lists.newArrayList();
+        for (int i = 0; i < responses.size(); i++) {
+            Long start = getStart(requests.get(i));
+            Long next = start != null ? starts.higher(start) : null;
+            for (OmObservation observation : responses.get(i).getObservationCollection()) {
+                long[] time = ObservationCache.getTime(observation);
+                // the next sub-period only returns observations after its
+                // exclusive filter start
+                if (next == null || time == null || time[0] <= next) {
+                    observations.add(observation);
+                }
+            }
+        }
+        return observations;
+    }
+
+    /**
+     * @return the start of the <code>During</code> filter period or
+     *         <code>null</code>
+     */
+    private static Long getStart(GetObservationRequest request) {
+        if (request.getTemporalFilters() == null || request.getTemporalFilters().size() != 1) {
+            return null;
+        }
+        TemporalFilter filter = request.getTemporalFilters().get(0);
+        if (TimeOperator.TM_During.equals(filter.getOperator()) && filter.getTime() instanceof TimePeriod
+                && ((TimePeriod) filter.getTime()).getStart() != null) {
+            return ((TimePeriod) filter.getTime()).getStart().getMillis();
+        }
+        return null;
+    }
+
+    private List<GetObservationRequest> splitIdentifiers(GetObservationRequest request) {
+        if (batchSize <= 0) {
+            return Collections.singletonList(request);
+        }
+        List<String> procedures = distinct(request.getProcedures());
+        List<String> observedProperties = distinct(request.getObservedProperties());
+        List<String> features = distinct(request.getFeatureIdentifiers());
+        int longest = Math.max(procedures.size(), Math.max(observedProperties.size(), features.size()));
+        if (longest <= batchSize) {
+            return Collections.singletonList(request);
+        }
+        List<GetObservationRequest> requests = Lists.newArrayList();
+        if (procedures.size() == longest) {
+            for (List<String> batch : Lists.partition(procedures, batchSize)) {
+                GetObservationRequest batchRequest = copy(request);
+                batchRequest.setProcedures(Lists.newArrayList(batch));
+                requests.add(batchRequest);
+            }
+        } else if (observedProperties.size() == longest) {
+            for (List<String> batch : Lists.partition(observedProperties, batchSize)) {
+                GetObservationRequest batchRequest = copy(request);
+                batchRequest.setObservedProperties(Lists.newArrayList(batch));
+                requests.add(batchRequest);
+            }
+        } else {
+            for (List<String> batch : Lists.partition(features, batchSize)) {
+                GetObservationRequest batchRequest = copy(request);
+                batchRequest.setFeatureIdentifiers(Lists.newArrayList(batch));
+                requests.add(batchRequest);
+            }
+        }
+        return requests;
+    }
+
+    private static List<String> distinct(List<String> identifiers) {
+        if (identifiers == null) {
+            return Collections.emptyList();
+        }
+        return Lists.newArrayList(Sets.newLinkedHashSet(identifiers));
+    }
+
+    private List<GetObservationRequest> splitTemporal(GetObservationRequest request) {
+        if (request.getTemporalFilters() == null || request.getTemporalFilters().size() != 1) {
+            return Collections.singletonList(request);
+        }
+        TemporalFilter filter = request.getTemporalFilters().get(0);
+        if (!TimeOperator.TM_During.equals(filter.getOperator()) || !(filter.getTime() instanceof TimePeriod)) {
+            return Collections.singletonList(request);
+        }
+        TimePeriod period = (TimePeriod) filter.getTime();
+        if (period.getStart() == null || period.getEnd() == null) {
+            return Collections.singletonList(request);
+        }
+        long start = period.getStart().getMillis();
+        long end = period.getEnd().getMillis();
+        int chunks = getChunks(end - start);
+        if (chunks <= 1) {
+            return Collections.singletonList(request);
+        }
+        long step = (end - start) / chunks;
+        List<GetObservationRequest> requests = Lists.newArrayListWithCapacity(chunks);
+        for (int i = 0; i < chunks; i++) {
+            long chunkStart = start + i * step;
+            // the filter bounds are exclusive, so the filters of adjacent
+            // chunks overlap by one millisecond and the end is extended, so
+            // observations starting in the chunk are returned
+            long filterStart = i == 0 ? start : chunkStart - 1;
+            long chunkEnd = i == chunks - 1 ? end : Math.min(end, chunkStart + step + maxObservationDuration);
+            TimePeriod chunk = new TimePeriod(new DateTime(filterStart, period.getStart().getZone()),
+                    new DateTime(chunkEnd, period.getEnd().getZone()));
+            GetObservationRequest chunkRequest = copy(request);
+            chunkRequest.setTemporalFilters(
+                    Lists.newArrayList(new TemporalFilter(filter.getOperator(), chunk, filter.getValueReference())));
+            requests.add(chunkRequest);
+        }
+        return requests;
+    }
+
+    private int getChunks(long duration) {
+        if (chunkDuration > 0) {
+            return (int) Math.min(MAX_CHUNKS, (duration + chunkDuration - 1) / chunkDuration);
+        }
+        // do not split into sub-periods shorter than a minute
+        return (int) Math.min(chunkCount, duration / MINUTE);
+    }
+
+    /**
+     * Copy the parameters of the request set by the request conversion
+     */
+    static GetObservationRequest copy(GetObservationRequest request) {
+        GetObservationRequest copy = new GetObservationRequest();
+        copy.setService(request.getService());
+        copy.setVersion(request.getVersion());
+        copy.setOfferings(Lists.newArrayList(request.getOfferings()));
+        copy.setProcedures(Lists.newArrayList(request.getProcedures()));
+        copy.setObservedProperties(Lists.newArrayList(request.getObservedProperties()));
+        copy.setFeatureIdentifiers(Lists.newArrayList(request.getFeatureIdentifiers()));
+        copy.setTemporalFilters(Lists.newArrayList(request.getTemporalFilters()));
+        if (request.isSetSpatialFilter()) {
+            copy.setSpatialFilter(request.getSpatialFilter());
+        }
+        if (request.isSetResultFilter()) {
+            copy.setResultFilter(request.getResultFilter());
+        }
+        copy.setResponseFormat(request.getResponseFormat());
+        return copy;
+    }
+
+}
@@ -29,109 +29,833 @@
 package org.n52.wfs.ds;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
+import javax.inject.Inject;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.n52.iceland.config.annotation.Configurable;
 import org.n52.iceland.config.annotation.Setting;
-import org.n52.iceland.exception.CodedException;
 import org.n52.iceland.exception.ows.NoApplicableCodeException;
 import org.n52.iceland.exception.ows.OwsExceptionReport;
 import org.n52.iceland.lifecycle.Constructable;
+import org.n52.iceland.lifecycle.Destroyable;
+import org.n52.iceland.ogc.ows.OWSConstants;
 import org.n52.iceland.util.CollectionHelper;
 import org.n52.iceland.util.Constants;
 import org.n52.iceland.util.http.MediaType;
+import org.n52.wfs.ds.upstream.CircuitBreaker;
+import org.n52.wfs.ds.upstream.HedgingPolicy;
+import org.n52.wfs.ds.upstream.LoadBalancer;
+import org.n52.wfs.ds.upstream.RetryPolicy;
+import org.n52.wfs.ds.upstream.SosEndpoint;
+import org.n52.wfs.exception.wfs.concrete.UpstreamUnavailableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.CharStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Handler for the HTTP communication with the upstream SOS. Uses a pooled
+ * keep-alive connection manager, see the <code>wfs.http.*</code> settings.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
 @Configurable
-public class HttpClientHandler implements Constructable {
+public class HttpClientHandler implements Constructable, Destroyable {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(GetFeatureHandler.class);
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpClientHandler.class);
     
     public static final String SOS_URL_KEY = "wfs.sosUrl";
 
+    public static final String SOS_REPLICA_URLS_KEY = "wfs.sosReplicaUrls";
+
+    public static final String MAX_TOTAL_CONNECTIONS_KEY = "wfs.http.maxTotalConnections";
+
+    public static final String MAX_CONNECTIONS_PER_ROUTE_KEY = "wfs.http.maxConnectionsPerRoute";
+
+    public static final String CONNECT_TIMEOUT_KEY = "wfs.http.connectTimeout";
+
+    public static final String SOCKET_TIMEOUT_KEY = "wfs.http.socketTimeout";
+
+    public static final String CONNECTION_REQUEST_TIMEOUT_KEY = "wfs.http.connectionRequestTimeout";
+
+    public static final String CONNECTION_TTL_KEY = "wfs.http.connectionTimeToLive";
+
+    public static final String IDLE_CONNECTION_TIMEOUT_KEY = "wfs.http.idleConnectionTimeout";
+
+    public static final String RESPONSE_COMPRESSION_KEY = "wfs.http.responseCompression";
+
+    public static final String REQUEST_COMPRESSION_KEY = "wfs.http.requestCompression";
+
+    private static final String GZIP = "gzip";
+
+    private static final String X_GZIP = "x-gzip";
+
+    private static final String DEFLATE = "deflate";
+
+    private static final SosResponseHandler<String> STRING_HANDLER =
+            content -> CharStreams.toString(new InputStreamReader(content, Charsets.UTF_8));
+
     private CloseableHttpClient httpclient;
 
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private RetryPolicy retryPolicy = new RetryPolicy();
+
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    private HedgingPolicy hedgingPolicy = new HedgingPolicy();
+
+    private LoadBalancer loadBalancer = new LoadBalancer();
+
+    private ExecutorService hedgingExecutor;
+
     private URI url;
 
+    private List<URI> replicaUrls = Lists.newArrayList();
+
+    private int maxTotalConnections = 50;
+
+    private int maxConnectionsPerRoute = 20;
+
+    private int connectTimeout = 5000;
+
+    private int socketTimeout = 60000;
+
+    private int connectionRequestTimeout = 10000;
+
+    private int connectionTimeToLive = 300000;
+
+    private int idleConnectionTimeout = 30000;
+
+    private boolean responseCompression = true;
+
+    private boolean requestCompression;
+
+    private final AtomicLong wireBytes = new AtomicLong();
+
+    private final AtomicLong decodedBytes = new AtomicLong();
+
+    @Inject
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    @Inject
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Inject
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    /**
+     * @return the hedging policy with the hedge and win counts
+     */
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * @return the circuit breaker guarding the SOS requests
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    @Inject
+    public void setLoadBalancer(LoadBalancer loadBalancer) {
+        this.loadBalancer = loadBalancer;
+        updateEndpoints();
+    }
+
+    /**
+     * @return the load balancer with the per endpoint statistics
+     */
+    public LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
     @Setting(SOS_URL_KEY)
     public void setUrl(URI url) {
         this.url = url;
+        updateEndpoints();
+    }
+
+    /**
+     * @param replicaUrls
+     *            comma separated URLs of SOS replicas equivalent to the
+     *            {@link #SOS_URL_KEY}
+     */
+    @Setting(SOS_REPLICA_URLS_KEY)
+    public void setReplicaUrls(String replicaUrls) {
+        List<URI> uris = Lists.newArrayList();
+        if (replicaUrls != null) {
+            for (String replicaUrl : Splitter.on(Constants.COMMA_CHAR).trimResults().omitEmptyStrings()
+                    .split(replicaUrls)) {
+                uris.add(URI.create(replicaUrl));
+            }
+        }
+        this.replicaUrls = uris;
+        updateEndpoints();
+    }
+
+    private void updateEndpoints() {
+        if (url != null) {
+            Set<URI> endpoints = Sets.newLinkedHashSet();
+            endpoints.add(url);
+            endpoints.addAll(replicaUrls);
+            loadBalancer.setEndpoints(endpoints);
+        }
+    }
+
+    /**
+     * @param maxTotalConnections
+     *            the maximum number of pooled connections
+     */
+    @Setting(MAX_TOTAL_CONNECTIONS_KEY)
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+        if (connectionManager != null) {
+            connectionManager.setMaxTotal(maxTotalConnections);
+        }
+    }
+
+    /**
+     * @param maxConnectionsPerRoute
+     *            the maximum number of pooled connections per route
+     */
+    @Setting(MAX_CONNECTIONS_PER_ROUTE_KEY)
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        if (connectionManager != null) {
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        }
+    }
+
+    /**
+     * @param connectTimeout
+     *            the connect timeout in milliseconds
+     */
+    @Setting(CONNECT_TIMEOUT_KEY)
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param socketTimeout
+     *            the socket (read) timeout in milliseconds
+     */
+    @Setting(SOCKET_TIMEOUT_KEY)
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * @param connectionRequestTimeout
+     *            the timeout in milliseconds to lease a connection from the
+     *            pool
+     */
+    @Setting(CONNECTION_REQUEST_TIMEOUT_KEY)
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    /**
+     * @param connectionTimeToLive
+     *            the maximum life time of a pooled connection in milliseconds
+     */
+    @Setting(CONNECTION_TTL_KEY)
+    public void setConnectionTimeToLive(int connectionTimeToLive) {
+        this.connectionTimeToLive = connectionTimeToLive;
+    }
+
+    /**
+     * @param idleConnectionTimeout
+     *            the time in milliseconds after which idle connections are
+     *            evicted from the pool
+     */
+    @Setting(IDLE_CONNECTION_TIMEOUT_KEY)
+    public void setIdleConnectionTimeout(int idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    /**
+     * @param responseCompression
+     *            whether gzip/deflate compressed responses should be requested
+     */
+    @Setting(RESPONSE_COMPRESSION_KEY)
+    public void setResponseCompression(boolean responseCompression) {
+        this.responseCompression = responseCompression;
+    }
+
+    /**
+     * @param requestCompression
+     *            whether POST request bodies should be sent gzip compressed
+     */
+    @Setting(REQUEST_COMPRESSION_KEY)
+    public void setRequestCompression(boolean requestCompression) {
+        this.requestCompression = requestCompression;
+    }
+
+    /**
+     * @return the number of response bytes received from the SOS as
+     *         transferred, i.e. possibly compressed
+     */
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    /**
+     * @return the number of response bytes received from the SOS after
+     *         decompression
+     */
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+
+    /**
+     * Get the current statistics of the connection pool, e.g. the number of
+     * leased, available and pending connections.
+     *
+     * @return the pool statistics or <code>null</code> if the handler is not
+     *         initialized
+     */
+    public PoolStats getPoolStats() {
+        if (connectionManager != null) {
+            return connectionManager.getTotalStats();
+        }
+        return null;
     }
 
     public String doGet(Map<String, List<String>> parameter) throws OwsExceptionReport {
-        HttpGet httpGet;
+        return doGet(parameter, STRING_HANDLER);
+    }
+
+    /**
+     * Execute a GET request against the SOS and pass the response stream to
+     * the handler
+     *
+     * @param parameter
+     *            KVP parameter
+     * @param handler
+     *            Handler to process the response stream
+     * @return the result of the handler
+     * @throws OwsExceptionReport
+     *             If the request fails or the handler throws an exception
+     */
+    public <T> T doGet(Map<String, List<String>> parameter, SosResponseHandler<T> handler)
+            throws OwsExceptionReport {
+        return doGet(parameter, null, handler);
+    }
+
+    /**
+     * Execute a conditional GET request against the SOS. The validators of
+     * the last response are sent and updated with the validators of the new
+     * response.
+     *
+     * @param parameter
+     *            KVP parameter
+     * @param validators
+     *            Validators of the last response, may be <code>null</code>
+     * @param handler
+     *            Handler to process the response stream
+     * @return the result of the handler or <code>null</code> if the SOS
+     *         responded with <code>304 Not Modified</code>
+     * @throws OwsExceptionReport
+     *             If the request fails or the handler throws an exception
+     */
+    public <T> T doGet(Map<String, List<String>> parameter, ResponseValidators validators,
+            SosResponseHandler<T> handler) throws OwsExceptionReport {
+        return execute(getOperation(parameter), endpoint -> {
+            HttpGet httpGet = new HttpGet(getGetUrl(endpoint, parameter));
+            addAcceptEncoding(httpGet);
+            if (validators != null) {
+                validators.addTo(httpGet);
+            }
+            return httpGet;
+        }, validators, handler);
+    }
+
+    public String doPost(String content, MediaType contentType) throws OwsExceptionReport {
+        return doPost(content, contentType, STRING_HANDLER);
+    }
+
+    /**
+     * Execute a POST request against the SOS and pass the response stream to
+     * the handler
+     *
+     * @param content
+     *            Request content
+     * @param contentType
+     *            Request content type
+     * @param handler
+     *            Handler to process the response stream
+     * @return the result of the handler
+     * @throws OwsExceptionReport
+     *             If the request fails or the handler throws an exception
+     */
+    public <T> T doPost(String content, MediaType contentType, SosResponseHandler<T> handler)
+            throws OwsExceptionReport {
+        return doPost(null, content, contentType, handler);
+    }
+
+    /**
+     * Execute a POST request for the SOS operation against the SOS and pass
+     * the response stream to the handler. The latencies used for hedging are
+     * tracked per operation.
+     *
+     * @param operation
+     *            the SOS operation, may be <code>null</code>
+     * @param content
+     *            Request content
+     * @param contentType
+     *            Request content type
+     * @param handler
+     *            Handler to process the response stream
+     * @return the result of the handler
+     * @throws OwsExceptionReport
+     *             If the request fails or the handler throws an exception
+     */
+    public <T> T doPost(String operation, String content, MediaType contentType, SosResponseHandler<T> handler)
+            throws OwsExceptionReport {
+        LOGGER.debug("SOS request: {}", content);
+        return execute(operation, endpoint -> {
+            HttpPost httpPost = new HttpPost(endpoint);
+            HttpEntity entity = new StringEntity(content, ContentType.create(contentType.toString(), "UTF-8"));
+            httpPost.setEntity(requestCompression ? new GzipCompressingEntity(entity) : entity);
+            addAcceptEncoding(httpPost);
+            return httpPost;
+        }, null, handler);
+    }
+
+    /**
+     * Execute the request and retry it according to the {@link RetryPolicy}
+     * if it fails with an I/O error or a retryable HTTP status. Each attempt
+     * may go to another SOS endpoint.
+     */
+    private <T> T execute(String operation, RequestFactory requestFactory,
+            ResponseValidators validators, SosResponseHandler<T> handler) throws OwsExceptionReport {
+        retryPolicy.onRequest();
+        hedgingPolicy.onRequest();
+        int attempt = 1;
+        while (true) {
+            try {
+                if (hedgingPolicy.isEnabled()) {
+                    return executeHedged(operation, requestFactory, validators, handler);
+                }
+                acquirePermission();
+                SosEndpoint endpoint = selectEndpoint();
+                return executeOnce(operation, endpoint, createRequest(requestFactory, endpoint), validators, handler,
+                        null);
+            } catch (UpstreamFailure failure) {
+                if (!failure.isRetryable() || !retryPolicy.canRetry(attempt)) {
+                    throw failure.toOwsExceptionReport();
+                }
+                LOGGER.info("Error while querying data '{}' (attempt {} of {}), retrying", failure.getMessage(),
+                        attempt, retryPolicy.getMaxAttempts());
+                backoff(attempt++);
+            }
+        }
+    }
+
+    private void acquirePermission() throws OwsExceptionReport {
+        if (!circuitBreaker.tryAcquirePermission()) {
+            throw new UpstreamUnavailableException()
+                    .withMessage("The SOS is currently not available, the request was rejected!");
+        }
+    }
+
+    /**
+     * Select the endpoint for a permitted call, the permission is released if
+     * no endpoint can be selected
+     */
+    private SosEndpoint selectEndpoint() throws OwsExceptionReport {
+        boolean selected = false;
         try {
-            httpGet = new HttpGet(getGetUrl(url, parameter));
-            LOGGER.debug("SOS request: {}", getGetUrl(url, parameter));
-            return getContent(httpclient.execute(httpGet));
-        } catch (URISyntaxException | IOException e) {
+            SosEndpoint endpoint = loadBalancer.select();
+            selected = true;
+            return endpoint;
+        } finally {
+            if (!selected) {
+                circuitBreaker.onIgnored();
+            }
+        }
+    }
+
+    /**
+     * Create the request for the selected endpoint, the permission and the
+     * endpoint are released if the request can not be created
+     */
+    private HttpRequestBase createRequest(RequestFactory requestFactory, SosEndpoint endpoint)
+            throws OwsExceptionReport {
+        boolean created = false;
+        try {
+            HttpRequestBase request = requestFactory.create(endpoint.getUri());
+            created = true;
+            return request;
+        } finally {
+            if (!created) {
+                circuitBreaker.onIgnored();
+                loadBalancer.onCancel(endpoint);
+            }
+        }
+    }
+
+    /**
+     * Execute the request once against the endpoint selected by the
+     * {@link LoadBalancer}, the attempt has to be permitted by the
+     * {@link CircuitBreaker}. The permission is completed on every path, as
+     * ignored if the request was aborted or interrupted. The headers future,
+     * if any, is completed when the response headers arrived.
+     */
+    private <T> T executeOnce(String operation, SosEndpoint endpoint, HttpRequestBase request,
+            ResponseValidators validators, SosResponseHandler<T> handler, CompletableFuture<Void> headers)
+            throws OwsExceptionReport, UpstreamFailure {
+        long start = System.currentTimeMillis();
+        CloseableHttpResponse response;
+        try {
+            response = httpclient.execute(request);
+        } catch (IOException e) {
+            // aborted requests are losers of a hedged request and interrupted
+            // requests were cancelled by the caller, both are not failures
+            if (request.isAborted() || Thread.currentThread().isInterrupted()) {
+                circuitBreaker.onIgnored();
+                loadBalancer.onCancel(endpoint);
+            } else {
+                circuitBreaker.onError(System.currentTimeMillis() - start);
+                loadBalancer.onFailure(endpoint);
+            }
+            throw new UpstreamFailure(e, retryPolicy.isRetryable(e));
+        } catch (RuntimeException e) {
+            circuitBreaker.onError(System.currentTimeMillis() - start);
+            loadBalancer.onFailure(endpoint);
+            throw e;
+        } catch (Error e) {
+            circuitBreaker.onIgnored();
+            loadBalancer.onCancel(endpoint);
+            throw e;
+        }
+        long latency = System.currentTimeMillis() - start;
+        if (headers != null) {
+            headers.complete(null);
+        }
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (retryPolicy.isRetryable(statusCode)) {
+            circuitBreaker.onError(latency);
+            loadBalancer.onFailure(endpoint);
+            close(response);
+            throw new UpstreamFailure(statusCode);
+        }
+        if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            // server errors are passed on to the caller, but count as breaker errors
+            circuitBreaker.onError(latency);
+        } else {
+            circuitBreaker.onSuccess(latency);
+        }
+        hedgingPolicy.recordLatency(operation, latency);
+        if (validators != null) {
+            validators.update(response);
+        }
+        if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+            close(response);
+            loadBalancer.onSuccess(endpoint, latency);
+            return null;
+        }
+        // the request is outstanding until the response body is consumed
+        try {
+            T result = handle(response, handler);
+            loadBalancer.onSuccess(endpoint, latency);
+            return result;
+        } catch (IOException e) {
+            if (request.isAborted() || Thread.currentThread().isInterrupted()) {
+                loadBalancer.onCancel(endpoint);
+            } else {
+                loadBalancer.onFailure(endpoint);
+            }
+            throw new UpstreamFailure(e, retryPolicy.isRetryable(e));
+        } catch (OwsExceptionReport | RuntimeException | Error e) {
+            loadBalancer.onCancel(endpoint);
+            throw e;
+        }
+    }
+
+    /**
+     * Execute the request and send a second identical request if no response
+     * headers arrived within the hedging delay. The delay is compared with
+     * the time to the response headers, the same latency it is derived from.
+     * The first successful response wins, the other request is aborted. If
+     * all request threads are busy, the request is executed without hedging.
+     */
+    private <T> T executeHedged(String operation, RequestFactory requestFactory,
+            ResponseValidators validators, SosResponseHandler<T> handler) throws OwsExceptionReport, UpstreamFailure {
+        acquirePermission();
+        SosEndpoint primaryEndpoint = selectEndpoint();
+        HttpRequestBase primary = createRequest(requestFactory, primaryEndpoint);
+        CompletableFuture<Void> primaryHeaders = new CompletableFuture<>();
+        CompletableFuture<T> primaryResult;
+        try {
+            primaryResult = submit(operation, primaryEndpoint, primary, validators, handler, primaryHeaders);
+        } catch (RejectedExecutionException e) {
+            return executeOnce(operation, primaryEndpoint, primary, validators, handler, null);
+        }
+        long delay = hedgingPolicy.getDelay(operation);
+        if (delay < 0) {
+            return await(primaryResult);
+        }
+        try {
+            primaryHeaders.get(delay, TimeUnit.MILLISECONDS);
+            return await(primaryResult);
+        } catch (TimeoutException e) {
+            // the budget is only withdrawn if the breaker permits the hedge
+            if (!circuitBreaker.tryAcquirePermission()) {
+                return await(primaryResult);
+            }
+            if (!hedgingPolicy.tryAcquireHedge()) {
+                circuitBreaker.onIgnored();
+                return await(primaryResult);
+            }
+        } catch (InterruptedException e) {
+            primary.abort();
+            Thread.currentThread().interrupt();
             throw new NoApplicableCodeException().causedBy(e);
+        } catch (ExecutionException e) {
+            return await(primaryResult);
+        }
+        LOGGER.debug("No SOS response headers after {} ms, sending hedged request", delay);
+        SosEndpoint hedgeEndpoint = selectEndpoint();
+        HttpRequestBase hedge = createRequest(requestFactory, hedgeEndpoint);
+        CompletableFuture<T> hedgeResult;
+        try {
+            hedgeResult = submit(operation, hedgeEndpoint, hedge, validators, handler, new CompletableFuture<>());
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("No thread available for the hedged request");
+            circuitBreaker.onIgnored();
+            loadBalancer.onCancel(hedgeEndpoint);
+            return await(primaryResult);
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        primaryResult.whenComplete((value, t) -> complete(result, value, t, failures));
+        hedgeResult.whenComplete((value, t) -> {
+            if (complete(result, value, t, failures)) {
+                hedgingPolicy.onHedgeWin();
+            }
+        });
+        try {
+            return await(result);
+        } finally {
+            primary.abort();
+            hedge.abort();
+        }
+    }
+
+    private <T> boolean complete(CompletableFuture<T> result, T value, Throwable t, AtomicInteger failures) {
+        if (t == null) {
+            return result.complete(value);
+        } else if (failures.incrementAndGet() == 2) {
+            result.completeExceptionally(t);
         }
+        return false;
     }
 
-    public String doPost(String content, MediaType contentType) throws CodedException {
+    /**
+     * Execute the request asynchronously, the headers future is completed at
+     * the latest when the request completed
+     *
+     * @throws RejectedExecutionException
+     *             If all request threads are busy
+     */
+    private <T> CompletableFuture<T> submit(String operation, SosEndpoint endpoint, HttpRequestBase request,
+            ResponseValidators validators, SosResponseHandler<T> handler, CompletableFuture<Void> headers) {
+        CompletableFuture<T> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return executeOnce(operation, endpoint, request, validators, handler, headers);
+            } catch (OwsExceptionReport | UpstreamFailure e) {
+                throw new CompletionException(e);
+            }
+        }, hedgingExecutor);
+        result.whenComplete((value, t) -> headers.complete(null));
+        return result;
+    }
+
+    private <T> T await(CompletableFuture<T> future) throws OwsExceptionReport, UpstreamFailure {
         try {
-            HttpPost httpPost = new HttpPost(url);
-            LOGGER.debug("SOS request: {}", content);
-            httpPost.setEntity(new StringEntity(content, ContentType.create(contentType.toString(), "UTF-8")));
-            int counter = 4;
-            CloseableHttpResponse response = null;
-            do {
-                try {
-                    response = httpclient.execute(httpPost); 
-                } catch (IOException e) {
-                    if (counter == 0) {
-                        throw new NoApplicableCodeException().causedBy(e);
-                    } else {
-                        LOGGER.info("Error while querying data '{}'. {} retries before throwing exception", e, counter);
-                    }
-                    counter--;
-                }
-            } while (response == null && counter >= 0);
-            return getContent(response);
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoApplicableCodeException().causedBy(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof OwsExceptionReport) {
+                throw (OwsExceptionReport) cause;
+            } else if (cause instanceof UpstreamFailure) {
+                throw (UpstreamFailure) cause;
+            }
+            throw new NoApplicableCodeException().causedBy(cause);
+        }
+    }
+
+    private void close(CloseableHttpResponse response) {
+        try {
+            response.close();
         } catch (IOException e) {
+            LOGGER.debug("Error while closing SOS response", e);
+        }
+    }
+
+    private void backoff(int attempt) throws OwsExceptionReport {
+        try {
+            Thread.sleep(retryPolicy.getBackoff(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new NoApplicableCodeException().causedBy(e);
         }
     }
 
-    private String getContent(CloseableHttpResponse response) throws IOException {
-        return EntityUtils.toString(response.getEntity(), "UTF-8");
+    private void addAcceptEncoding(HttpRequestBase request) {
+        if (responseCompression) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, GZIP + ", " + DEFLATE);
+        }
+    }
+
+    private <T> T handle(CloseableHttpResponse response, SosResponseHandler<T> handler)
+            throws IOException, OwsExceptionReport {
+        // closing the content stream consumes the remaining bytes and closing
+        // the response returns the connection to the pool
+        try {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new NoApplicableCodeException().withMessage("The SOS response is empty!");
+            }
+            CountingInputStream wire = new CountingInputStream(entity.getContent());
+            CountingInputStream decoded = new CountingInputStream(decode(wire, entity.getContentEncoding()));
+            try (InputStream content = decoded) {
+                return handler.handle(content);
+            } finally {
+                wireBytes.addAndGet(wire.getCount());
+                decodedBytes.addAndGet(decoded.getCount());
+                LOGGER.debug("Received {} bytes from SOS, decoded to {} bytes", wire.getCount(), decoded.getCount());
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private InputStream decode(InputStream content, Header contentEncoding) throws IOException {
+        if (contentEncoding != null && contentEncoding.getValue() != null) {
+            String encoding = contentEncoding.getValue().trim().toLowerCase(Locale.ROOT);
+            if (GZIP.equals(encoding) || X_GZIP.equals(encoding)) {
+                return new GZIPInputStream(content);
+            } else if (DEFLATE.equals(encoding)) {
+                return new DeflateInputStream(content);
+            }
+        }
+        return content;
+    }
+
+    private static String getOperation(Map<String, List<String>> parameter) {
+        List<String> values = parameter.get(OWSConstants.GetCapabilitiesParams.request.name());
+        return CollectionHelper.isNotEmpty(values) ? values.get(0) : null;
     }
 
-    private URI getGetUrl(URI url, Map<String, List<String>> parameters) throws URISyntaxException {
-        URIBuilder uriBuilder = new URIBuilder(url);
-        if (CollectionHelper.isNotEmpty(parameters)) {
-            for (String key : parameters.keySet()) {
-                uriBuilder.addParameter(key, Joiner.on(Constants.COMMA_CHAR).join(parameters.get(key)));
+    private static URI getGetUrl(URI url, Map<String, List<String>> parameters) throws OwsExceptionReport {
+        try {
+            URIBuilder uriBuilder = new URIBuilder(url);
+            if (CollectionHelper.isNotEmpty(parameters)) {
+                for (String key : parameters.keySet()) {
+                    uriBuilder.addParameter(key, Joiner.on(Constants.COMMA_CHAR).join(parameters.get(key)));
+                }
             }
+            URI uri = uriBuilder.build();
+            LOGGER.debug("Executing GET method '{}'", uri);
+            return uri;
+        } catch (URISyntaxException e) {
+            throw new NoApplicableCodeException().causedBy(e);
         }
-        URI uri = uriBuilder.build();
-        LOGGER.debug("Executing GET method '{}'", uri);
-        return uri;
     }
 
     @Override
     public void init() {
-        httpclient = HttpClients.createDefault();
-//        httpclient = HttpClients.custom().setConnectionManager(new PoolingHttpClientConnectionManager()).setConnectionManagerShared(true).build();
+        connectionManager = new PoolingHttpClientConnectionManager(connectionTimeToLive, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .build();
+        httpclient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                // decompression is done in handle() to count the transferred bytes
+                .disableContentCompression()
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS)
+                .build();
+        // more threads than connections would only wait for a connection,
+        // requests are executed in the calling thread if all threads are busy
+        hedgingExecutor = new ThreadPoolExecutor(0, Math.max(1, maxTotalConnections), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("sos-request-%d").setDaemon(true).build());
+        LOGGER.info("Initialized SOS connection pool (max total: {}, max per route: {})", maxTotalConnections,
+                maxConnectionsPerRoute);
     }
 
+    @Override
     public void destroy() {
+        if (hedgingExecutor != null) {
+            hedgingExecutor.shutdownNow();
+        }
         if (httpclient != null) {
             try {
                 httpclient.close();
@@ -141,4 +865,48 @@ public class HttpClientHandler implements Constructable {
         }
 
     }
+
+    /**
+     * Creates the request for an endpoint
+     */
+    @FunctionalInterface
+    private interface RequestFactory {
+        HttpRequestBase create(URI endpoint) throws OwsExceptionReport;
+    }
+
+    /**
+     * Failure of a single attempt to query the SOS
+     */
+    private static class UpstreamFailure extends Exception {
+
+        private static final long serialVersionUID = -2917046012410584447L;
+
+        private final int statusCode;
+
+        private final boolean retryable;
+
+        UpstreamFailure(IOException cause, boolean retryable) {
+            super(cause.toString(), cause);
+            this.statusCode = -1;
+            this.retryable = retryable;
+        }
+
+        UpstreamFailure(int statusCode) {
+            super("HTTP status " + statusCode);
+            this.statusCode = statusCode;
+            this.retryable = true;
+        }
+
+        boolean isRetryable() {
+            return retryable;
+        }
+
+        OwsExceptionReport toOwsExceptionReport() {
+            if (getCause() != null) {
+                return new NoApplicableCodeException().causedBy(getCause());
+            }
+            return new NoApplicableCodeException().withMessage("The SOS responded with HTTP status %d!",
+                    statusCode);
+        }
+    }
 }
@@ -0,0 +1,581 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.inject.Inject;
+
+import org.apache.xmlbeans.XmlObject;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.filter.FilterConstants.TimeOperator;
+import org.n52.iceland.ogc.gml.time.Time;
+import org.n52.iceland.ogc.gml.time.TimeInstant;
+import org.n52.iceland.ogc.gml.time.TimePeriod;
+import org.n52.sos.ogc.filter.TemporalFilter;
+import org.n52.sos.ogc.om.OmObservation;
+import org.n52.sos.request.GetObservationRequest;
+import org.n52.sos.response.GetObservationResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Interval-aware cache of observations. The observations are cached per
+ * series, identified by the procedures, observed properties, features of
+ * interest and offerings of the request. For each series the cache records
+ * which phenomenon time intervals it already holds completely, so a request
+ * for a (sliding) period only queries the uncovered gaps from the SOS.
+ *
+ * Only requests with a single <code>During</code> phenomenonTime filter and
+ * without spatial or result filter are cached. The covered intervals expire
+ * after the time to live, intervals are never recorded beyond the time they
+ * were queried. The number of cached observations and series is bounded,
+ * the least recently used series are evicted first. Series without covered
+ * intervals, e.g. expired ones, are removed.
+ *
+ * A <code>During</code> filter excludes the bounds of its period, so the
+ * cache answers a request with the observations strictly within the period
+ * and the covered intervals contain the instants that were actually queried.
+ * The gaps are therefore queried with a <code>During</code> filter widened by
+ * one millisecond on both sides and extended by the maximum observation
+ * duration of
+ * {@link GetObservationRequestSplitter#MAX_OBSERVATION_DURATION_KEY}, so
+ * observations starting in a gap but crossing its end are cached as well.
+ * The gap requests are split with the {@link GetObservationRequestSplitter}.
+ *
+ * The cache holds the parsed responses of the gap requests, not the decoded
+ * observations, as the encoders modify the observations, e.g. set the
+ * gml:ids. Each request decodes its own copy of the cached responses, like
+ * the callers of the {@link org.n52.wfs.ds.upstream.ResponseCache}.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class ObservationCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservationCache.class);
+
+    public static final String ENABLED_KEY = "wfs.observationCache.enabled";
+
+    public static final String TTL_KEY = "wfs.observationCache.ttl";
+
+    public static final String MAX_OBSERVATIONS_KEY = "wfs.observationCache.maxObservations";
+
+    public static final String MAX_SERIES_KEY = "wfs.observationCache.maxSeries";
+
+    private static final long MINUTE = 60 * 1000;
+
+    private final Map<String, Series> series = new LinkedHashMap<>(16, 0.75f, true);
+
+    private GetObservationRequestSplitter splitter = new GetObservationRequestSplitter();
+
+    private boolean enabled;
+
+    private long timeToLive = 10 * MINUTE;
+
+    private int maxObservations = 100000;
+
+    private int maxSeries = 1000;
+
+    private long maxObservationDuration;
+
+    private int size;
+
+    private long requests;
+
+    private long fetchedGaps;
+
+    private long evictions;
+
+    @Inject
+    public void setGetObservationRequestSplitter(GetObservationRequestSplitter splitter) {
+        this.splitter = splitter;
+    }
+
+    @Setting(ENABLED_KEY)
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param ttl
+     *            the time to live of a covered interval in minutes
+     */
+    @Setting(TTL_KEY)
+    public void setTimeToLive(int ttl) {
+        this.timeToLive = Math.max(0, ttl) * MINUTE;
+    }
+
+    @Setting(MAX_OBSERVATIONS_KEY)
+    public synchronized void setMaxObservations(int maxObservations) {
+        this.maxObservations = Math.max(0, maxObservations);
+        evict();
+    }
+
+    @Setting(MAX_SERIES_KEY)
+    public synchronized void setMaxSeries(int maxSeries) {
+        this.maxSeries = Math.max(0, maxSeries);
+        evict();
+    }
+
+    /**
+     * @param maxObservationDuration
+     *            the maximum duration of an observation with a phenomenon
+     *            time period in minutes
+     */
+    @Setting(GetObservationRequestSplitter.MAX_OBSERVATION_DURATION_KEY)
+    public void setMaxObservationDuration(int maxObservationDuration) {
+        this.maxObservationDuration = Math.max(0, maxObservationDuration) * MINUTE;
+    }
+
+    /**
+     * Check if the request can be answered by the cache
+     *
+     * @param request
+     *            the SOS GetObservation request
+     * @return <code>true</code>, if the cache is enabled and the request has a
+     *         single <code>During</code> phenomenonTime filter and no spatial
+     *         or result filter
+     */
+    public boolean isCacheable(GetObservationRequest request) {
+        return enabled && getPeriod(request) != null && !request.isSetSpatialFilter()
+                && !request.isSetResultFilter();
+    }
+
+    /**
+     * Get the observations for the period of the request. Cached responses
+     * are reused, only the uncovered gaps are queried with the loader.
+     *
+     * @param request
+     *            the cacheable SOS GetObservation request
+     * @param loader
+     *            loader to query the (split) gap requests from the SOS
+     * @param decoder
+     *            decoder to decode a copy of a parsed response
+     * @return the response with the observations in time order, they are
+     *         not shared with other requests
+     * @throws OwsExceptionReport
+     *             If querying a gap or decoding a response fails
+     */
+    public GetObservationResponse getObservations(GetObservationRequest request, Loader loader, Decoder decoder)
+            throws OwsExceptionReport {
+        TimePeriod period = getPeriod(request);
+        String key = getKey(request);
+        // the During bounds are exclusive
+        long start = period.getStart().getMillis() + 1;
+        long end = period.getEnd().getMillis() - 1;
+        long now = System.currentTimeMillis();
+        List<long[]> gaps;
+        List<Interval> cached;
+        synchronized (this) {
+            requests++;
+            // the series is only stored if an interval is recorded
+            Series entry = series.get(key);
+            if (entry == null) {
+                entry = new Series();
+            } else {
+                size -= entry.expire(now);
+                if (entry.isEmpty()) {
+                    series.remove(key);
+                }
+            }
+            if (end < start) {
+                gaps = Lists.newArrayList();
+                cached = Lists.newArrayList();
+            } else {
+                gaps = entry.getGaps(start, end);
+                cached = entry.getIntervals(start, end);
+            }
+        }
+        TreeMap<Long, List<OmObservation>> observations = new TreeMap<>();
+        Map<Segment, List<OmObservation>> decoded = new IdentityHashMap<>();
+        for (Interval interval : cached) {
+            List<OmObservation> list = decoded.get(interval.segment);
+            if (list == null) {
+                list = decode(interval.segment, decoder);
+                decoded.put(interval.segment, list);
+            }
+            long from = Math.max(start, interval.start);
+            long to = Math.min(end, interval.end);
+            for (OmObservation observation : list) {
+                long[] time = getTime(observation);
+                if (time != null && time[0] >= from && time[0] <= to && time[1] <= end) {
+                    add(observations, observation);
+                }
+            }
+        }
+        for (long[] gap : gaps) {
+            long queried = System.currentTimeMillis();
+            List<GetObservationRequest> gapRequests = splitter.split(getGapRequest(request, gap));
+            Segment segment = new Segment(gapRequests, loader.load(gapRequests));
+            List<OmObservation> fetched = decode(segment, decoder);
+            for (OmObservation observation : fetched) {
+                // the extended gap request also returns observations that
+                // start after the gap or end after the period
+                long[] time = getTime(observation);
+                if (time == null || time[0] <= gap[1] && time[1] <= end) {
+                    add(observations, observation);
+                }
+            }
+            synchronized (this) {
+                fetchedGaps++;
+                expire(now);
+                Series entry = series.get(key);
+                if (entry == null) {
+                    entry = new Series();
+                }
+                size += entry.put(gap[0], Math.min(gap[1], queried), now + timeToLive, segment, fetched);
+                if (!entry.isEmpty()) {
+                    series.put(key, entry);
+                }
+                evict();
+            }
+        }
+        LOGGER.debug("Answered observations for {} with {} queried gaps", key, gaps.size());
+        GetObservationResponse response = new GetObservationResponse();
+        response.setService(request.getService());
+        response.setVersion(request.getVersion());
+        List<OmObservation> result = Lists.newArrayList();
+        for (List<OmObservation> list : observations.values()) {
+            result.addAll(list);
+        }
+        response.setObservationCollection(result);
+        return response;
+    }
+
+    /**
+     * Decode a copy of the responses of the segment and merge them
+     */
+    private List<OmObservation> decode(Segment segment, Decoder decoder) throws OwsExceptionReport {
+        List<GetObservationResponse> responses = Lists.newArrayListWithCapacity(segment.responses.size());
+        for (XmlObject response : segment.responses) {
+            responses.add(decoder.decode(response));
+        }
+        return splitter.merge(segment.requests, responses);
+    }
+
+    /**
+     * Remove the expired intervals and the series without covered intervals
+     */
+    private void expire(long now) {
+        Iterator<Series> iterator = series.values().iterator();
+        while (iterator.hasNext()) {
+            Series entry = iterator.next();
+            size -= entry.expire(now);
+            if (entry.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Series> iterator = series.values().iterator();
+        while ((size > maxObservations || series.size() > maxSeries) && iterator.hasNext()) {
+            size -= iterator.next().size;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private GetObservationRequest getGapRequest(GetObservationRequest request, long[] gap) {
+        GetObservationRequest gapRequest = GetObservationRequestSplitter.copy(request);
+        TemporalFilter filter = request.getTemporalFilters().get(0);
+        // widened, so the SOS returns the observations at the bounds of the gap
+        TimePeriod period = new TimePeriod(new DateTime(gap[0] - 1, DateTimeZone.UTC),
+                new DateTime(gap[1] + 1 + maxObservationDuration, DateTimeZone.UTC));
+        gapRequest.setTemporalFilters(
+                Lists.newArrayList(new TemporalFilter(filter.getOperator(), period, filter.getValueReference())));
+        return gapRequest;
+    }
+
+    private static void add(TreeMap<Long, List<OmObservation>> observations, OmObservation observation) {
+        long[] time = getTime(observation);
+        Long key = time != null ? time[0] : Long.MIN_VALUE;
+        List<OmObservation> list = observations.get(key);
+        if (list == null) {
+            list = Lists.newArrayListWithCapacity(1);
+            observations.put(key, list);
+        }
+        list.add(observation);
+    }
+
+    private static TimePeriod getPeriod(GetObservationRequest request) {
+        if (request.getTemporalFilters() == null || request.getTemporalFilters().size() != 1) {
+            return null;
+        }
+        TemporalFilter filter = request.getTemporalFilters().get(0);
+        if (TimeOperator.TM_During.equals(filter.getOperator()) && filter.getTime() instanceof TimePeriod) {
+            TimePeriod period = (TimePeriod) filter.getTime();
+            if (period.getStart() != null && period.getEnd() != null) {
+                return period;
+            }
+        }
+        return null;
+    }
+
+    private static String getKey(GetObservationRequest request) {
+        Joiner joiner = Joiner.on(',');
+        return Joiner.on('|').join(joiner.join(Sets.newTreeSet(request.getOfferings())),
+                joiner.join(Sets.newTreeSet(request.getProcedures())),
+                joiner.join(Sets.newTreeSet(request.getObservedProperties())),
+                joiner.join(Sets.newTreeSet(request.getFeatureIdentifiers())),
+                String.valueOf(request.getResponseFormat()));
+    }
+
+    /**
+     * @return the phenomenon start and end time in milliseconds or
+     *         <code>null</code>
+     */
+    static long[] getTime(OmObservation observation) {
+        Time time = observation.getPhenomenonTime();
+        if (time instanceof TimeInstant && ((TimeInstant) time).getValue() != null) {
+            long instant = ((TimeInstant) time).getValue().getMillis();
+            return new long[] { instant, instant };
+        } else if (time instanceof TimePeriod && ((TimePeriod) time).getStart() != null
+                && ((TimePeriod) time).getEnd() != null) {
+            return new long[] { ((TimePeriod) time).getStart().getMillis(), ((TimePeriod) time).getEnd().getMillis() };
+        }
+        return null;
+    }
+
+    public synchronized void clear() {
+        series.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the number of cached observations
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of cached series
+     */
+    public synchronized int getSeriesCount() {
+        return series.size();
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the number of gaps queried from the SOS
+     */
+    public synchronized long getFetchedGaps() {
+        return fetchedGaps;
+    }
+
+    /**
+     * @return the number of series evicted because of the size limits
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Loader to query the parsed responses of the gap requests from the SOS
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * @return the parsed responses in the order of the requests
+         */
+        List<XmlObject> load(List<GetObservationRequest> requests) throws OwsExceptionReport;
+    }
+
+    /**
+     * Decoder of a parsed, possibly shared response
+     */
+    @FunctionalInterface
+    public interface Decoder {
+        /**
+         * @return the decoded response, the observations must not be shared
+         */
+        GetObservationResponse decode(XmlObject response) throws OwsExceptionReport;
+    }
+
+    /**
+     * The parsed responses of the split requests of a gap
+     */
+    private static class Segment {
+
+        private final List<GetObservationRequest> requests;
+
+        private final List<XmlObject> responses;
+
+        Segment(List<GetObservationRequest> requests, List<XmlObject> responses) {
+            this.requests = requests;
+            this.responses = responses;
+        }
+
+    }
+
+    /**
+     * Covered interval, its bounds are inclusive. The observations starting
+     * in the interval are taken from the segment.
+     */
+    private static class Interval {
+
+        private final long start;
+
+        private final long end;
+
+        private final long expires;
+
+        private final Segment segment;
+
+        private final int size;
+
+        Interval(long start, long end, long expires, Segment segment, int size) {
+            this.start = start;
+            this.end = end;
+            this.expires = expires;
+            this.segment = segment;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * Covered intervals of one series
+     */
+    private static class Series {
+
+        /**
+         * non-overlapping covered intervals by start
+         */
+        private final TreeMap<Long, Interval> coverage = new TreeMap<>();
+
+        private int size;
+
+        /**
+         * Remove the expired intervals
+         *
+         * @return the number of removed observations
+         */
+        int expire(long now) {
+            int removed = 0;
+            Iterator<Interval> iterator = coverage.values().iterator();
+            while (iterator.hasNext()) {
+                Interval interval = iterator.next();
+                if (interval.expires <= now) {
+                    iterator.remove();
+                    removed += interval.size;
+                }
+            }
+            size -= removed;
+            return removed;
+        }
+
+        boolean isEmpty() {
+            return coverage.isEmpty();
+        }
+
+        /**
+         * @return the uncovered gaps of the period, the bounds are inclusive
+         */
+        List<long[]> getGaps(long start, long end) {
+            List<long[]> gaps = Lists.newArrayList();
+            long cursor = start;
+            for (Interval interval : getIntervals(start, end)) {
+                if (interval.start > cursor) {
+                    gaps.add(new long[] { cursor, interval.start - 1 });
+                }
+                if (interval.end >= end) {
+                    return gaps;
+                }
+                cursor = interval.end + 1;
+            }
+            gaps.add(new long[] { cursor, end });
+            return gaps;
+        }
+
+        /**
+         * @return the covered intervals overlapping the period in time order
+         */
+        List<Interval> getIntervals(long start, long end) {
+            Long first = coverage.floorKey(start);
+            List<Interval> intervals = Lists.newArrayList();
+            for (Interval interval : coverage.subMap(first != null ? first : start, true, end, true).values()) {
+                if (interval.end >= start) {
+                    intervals.add(interval);
+                }
+            }
+            return intervals;
+        }
+
+        /**
+         * Record the parts of the interval that are still uncovered
+         *
+         * @param fetched
+         *            the decoded observations of the segment
+         * @return the number of added observations
+         */
+        int put(long start, long end, long expires, Segment segment, List<OmObservation> fetched) {
+            if (end < start) {
+                return 0;
+            }
+            int added = 0;
+            for (long[] gap : getGaps(start, end)) {
+                int count = 0;
+                for (OmObservation observation : fetched) {
+                    long[] time = getTime(observation);
+                    if (time != null && time[0] >= gap[0] && time[0] <= gap[1]) {
+                        count++;
+                    }
+                }
+                coverage.put(gap[0], new Interval(gap[0], gap[1], expires, segment, count));
+                added += count;
+            }
+            size += added;
+            return added;
+        }
+
+    }
+
+}
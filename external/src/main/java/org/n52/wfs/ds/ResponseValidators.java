@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * HTTP validators (<code>ETag</code> and <code>Last-Modified</code>) of the
+ * last response for a resource. They are sent as
+ * <code>If-None-Match</code>/<code>If-Modified-Since</code> with the next
+ * request, so the SOS can answer with <code>304 Not Modified</code>.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+public class ResponseValidators {
+
+    private volatile String entityTag;
+
+    private volatile String lastModified;
+
+    /**
+     * Add the conditional request headers
+     *
+     * @param request
+     *            the request
+     */
+    void addTo(HttpRequestBase request) {
+        String entityTag = this.entityTag;
+        String lastModified = this.lastModified;
+        if (entityTag != null) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, entityTag);
+        }
+        if (lastModified != null) {
+            request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * Remember the validators of the response
+     *
+     * @param response
+     *            the response
+     */
+    void update(HttpResponse response) {
+        Header entityTag = response.getFirstHeader(HttpHeaders.ETAG);
+        Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        if (entityTag != null || lastModified != null) {
+            this.entityTag = entityTag != null ? entityTag.getValue() : null;
+            this.lastModified = lastModified != null ? lastModified.getValue() : null;
+        }
+    }
+
+    /**
+     * Forget the validators, e.g. if the response could not be processed
+     */
+    public void reset() {
+        this.entityTag = null;
+        this.lastModified = null;
+    }
+
+    public String getEntityTag() {
+        return entityTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+}
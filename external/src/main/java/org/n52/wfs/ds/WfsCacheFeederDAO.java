@@ -30,28 +30,46 @@ package org.n52.wfs.ds;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 
 import org.n52.iceland.cache.WritableContentCache;
 import org.n52.iceland.coding.CodingRepository;
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
 import org.n52.iceland.exception.ows.NoApplicableCodeException;
 import org.n52.iceland.exception.ows.OwsExceptionReport;
 import org.n52.iceland.ogc.ows.OWSConstants;
+import org.n52.iceland.ogc.gml.AbstractFeature;
 import org.n52.iceland.ogc.ows.OwsCapabilities;
+import org.n52.iceland.ogc.ows.OwsOperation;
+import org.n52.iceland.ogc.ows.OwsOperationPredicates;
+import org.n52.iceland.ogc.ows.OwsParameterValue;
+import org.n52.iceland.ogc.ows.OwsParameterValuePossibleValues;
 import org.n52.iceland.ogc.sos.Sos2Constants;
 import org.n52.iceland.ogc.sos.SosConstants;
 import org.n52.iceland.response.GetCapabilitiesResponse;
 import org.n52.sos.request.GetFeatureOfInterestRequest;
-import org.n52.sos.util.CodingHelper;
-import org.n52.sos.util.XmlHelper;
 import org.n52.wfs.cache.InMemoryCacheImpl;
 import org.n52.wfs.cache.WfsCacheFeederHandler;
+import org.n52.wfs.ds.upstream.Bulkheads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
+@Configurable
 public class WfsCacheFeederDAO implements WfsCacheFeederHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WfsCacheFeederDAO.class);
+
+    public static final String COLUMNAR_CACHE_KEY = "wfs.cache.columnar";
+
+    private static final int FEATURE_BATCH_SIZE = 100;
     
     @Inject
     private HttpClientHandler httpClientHandler;
@@ -62,15 +80,82 @@ public class WfsCacheFeederDAO implements WfsCacheFeederHandler {
     @Inject
     private GetFeatureOfInterestQuerier getFeatureOfInterestQuerier;
 
+    @Inject
+    private Bulkheads bulkheads;
+
+    @Inject
+    private GetFeatureHandler getFeatureHandler;
+
+    private final ResponseValidators capabilitiesValidators = new ResponseValidators();
+
+    private final ContentHashingResponseHandler<Object> capabilitiesHandler =
+            new ContentHashingResponseHandler<>(new DecodingResponseHandler());
+
+    private volatile OwsCapabilities owsCapabilities;
+
+    private boolean columnarCache;
+
+    @Setting(COLUMNAR_CACHE_KEY)
+    public void setColumnarCache(boolean columnarCache) {
+        this.columnarCache = columnarCache;
+    }
+
     @Override
     public void updateCache(WritableContentCache cache) throws OwsExceptionReport {
         updateOwsCapabilities(cache);
         updateFeatures(cache);
+        getFeatureHandler.prepareFeatures((InMemoryCacheImpl) cache);
+    }
+
+    @Override
+    public void loadCache(WritableContentCache cache, Set<AbstractFeature> features) {
+        InMemoryCacheImpl wfsCache = (InMemoryCacheImpl) cache;
+        getFeatureHandler.normalizeFeatures(features);
+        wfsCache.setAbstractFeatures(features, columnarCache);
+        wfsCache.setPartial(true);
+        getFeatureHandler.prepareFeatures(wfsCache);
     }
     
+    /**
+     * Update the features of the cache from the difference between the
+     * feature identifiers listed in the SOS capabilities and the cached
+     * features. Only the new features are queried. Without listed identifiers
+     * or complete cached features all features are queried.
+     */
+    @Override
+    public void updateCacheIncrementally(WritableContentCache cache) throws OwsExceptionReport {
+        updateOwsCapabilities(cache);
+        InMemoryCacheImpl wfsCache = (InMemoryCacheImpl) cache;
+        Set<String> identifiers = getFeatureIdentifiers(owsCapabilities);
+        if (identifiers.isEmpty() || !wfsCache.isSetAbstractFeatures() || wfsCache.isPartial()) {
+            LOGGER.debug("No feature identifiers in SOS capabilities or no complete cached features, "
+                    + "querying all features");
+            updateFeatures(cache);
+            getFeatureHandler.prepareFeatures(wfsCache);
+            return;
+        }
+        Set<String> cachedIdentifiers = wfsCache.getSnapshot().getIdentifiers();
+        List<String> added = Lists.newArrayList(Sets.difference(identifiers, cachedIdentifiers));
+        Set<String> removed = Sets.difference(cachedIdentifiers, identifiers).immutableCopy();
+        Set<AbstractFeature> features = Sets.newHashSet();
+        for (List<String> batch : Lists.partition(added, FEATURE_BATCH_SIZE)) {
+            GetFeatureOfInterestRequest sosRequest = getGetFeatureRequest();
+            sosRequest.setFeatureIdentifiers(Lists.newArrayList(batch));
+            features.addAll(getFeatureOfInterestQuerier.queryAndGetFeatures(sosRequest));
+        }
+        getFeatureHandler.normalizeFeatures(features);
+        LOGGER.debug("Incremental cache update: {} features added, {} removed", features.size(), removed.size());
+        if (!features.isEmpty() || !removed.isEmpty()) {
+            wfsCache.updateAbstractFeatures(features, removed);
+        }
+        getFeatureHandler.prepareFeatures(wfsCache);
+    }
+
     private void updateFeatures(WritableContentCache cache) throws OwsExceptionReport {
         GetFeatureOfInterestRequest sosRequest = getGetFeatureRequest();
-        ((InMemoryCacheImpl)cache).setAbstractFeatures(getFeatureOfInterestQuerier.queryAndGetFeatures(sosRequest));
+        Set<AbstractFeature> features = getFeatureOfInterestQuerier.queryAndGetFeatures(sosRequest);
+        getFeatureHandler.normalizeFeatures(features);
+        ((InMemoryCacheImpl)cache).setAbstractFeatures(features, columnarCache);
     }
     
     
@@ -81,17 +166,60 @@ public class WfsCacheFeederDAO implements WfsCacheFeederHandler {
         return sosRequest;
     }
 
-    private void updateOwsCapabilities(WritableContentCache cache) throws OwsExceptionReport {
-        Object object =
-                CodingHelper.decodeXmlElement(XmlHelper.parseXmlString(httpClientHandler.doGet(getParameter())));
-        if (object instanceof GetCapabilitiesResponse) {
-            ((InMemoryCacheImpl)cache).setOwsCapabilities(((GetCapabilitiesResponse) object).getCapabilities());
-        } else if (object instanceof OwsCapabilities) {
-            ((InMemoryCacheImpl)cache).setOwsCapabilities((OwsCapabilities) object);
-        } else if (object instanceof OwsExceptionReport) {
-            throw new NoApplicableCodeException().causedBy((OwsExceptionReport) object).withMessage("error");
-        } else {
-            throw new NoApplicableCodeException().withMessage("error");
+    /**
+     * Get the featureOfInterest values of the GetFeatureOfInterest operation
+     * from the capabilities operations metadata.
+     *
+     * @return the feature identifiers, empty if the SOS does not list them
+     */
+    private Set<String> getFeatureIdentifiers(OwsCapabilities capabilities) {
+        Set<String> identifiers = Sets.newHashSet();
+        if (capabilities != null && capabilities.getOperationsMetadata() != null) {
+            Optional<OwsOperation> operation = capabilities.getOperationsMetadata()
+                    .findOperation(OwsOperationPredicates.name(SosConstants.Operations.GetFeatureOfInterest.name()));
+            if (operation.isPresent()) {
+                List<OwsParameterValue> values = operation.get().getParameterValues()
+                        .get(SosConstants.GetObservationParams.featureOfInterest.name());
+                if (values != null) {
+                    for (OwsParameterValue value : values) {
+                        if (value instanceof OwsParameterValuePossibleValues) {
+                            identifiers.addAll(((OwsParameterValuePossibleValues) value).getValues());
+                        }
+                    }
+                }
+            }
+        }
+        return identifiers;
+    }
+
+    /**
+     * Query the SOS capabilities conditionally. If the SOS responds with
+     * <code>304 Not Modified</code> or the response content is unchanged, the
+     * previously decoded capabilities are reused without parsing.
+     */
+    private synchronized void updateOwsCapabilities(WritableContentCache cache) throws OwsExceptionReport {
+        try {
+            Object object = bulkheads.execute(OWSConstants.Operations.GetCapabilities.name(),
+                    () -> httpClientHandler.doGet(getParameter(), capabilitiesValidators, capabilitiesHandler));
+            if (object == null && owsCapabilities != null) {
+                LOGGER.debug("SOS capabilities not modified");
+                ((InMemoryCacheImpl) cache).setOwsCapabilities(owsCapabilities);
+            } else if (object instanceof GetCapabilitiesResponse) {
+                owsCapabilities = ((GetCapabilitiesResponse) object).getCapabilities();
+                ((InMemoryCacheImpl) cache).setOwsCapabilities(owsCapabilities);
+            } else if (object instanceof OwsCapabilities) {
+                owsCapabilities = (OwsCapabilities) object;
+                ((InMemoryCacheImpl) cache).setOwsCapabilities(owsCapabilities);
+            } else if (object instanceof OwsExceptionReport) {
+                throw new NoApplicableCodeException().causedBy((OwsExceptionReport) object).withMessage("error");
+            } else {
+                throw new NoApplicableCodeException().withMessage("error");
+            }
+        } catch (OwsExceptionReport | RuntimeException e) {
+            // the next request has to fetch and decode the complete capabilities
+            capabilitiesValidators.reset();
+            capabilitiesHandler.reset();
+            throw e;
         }
     }
 
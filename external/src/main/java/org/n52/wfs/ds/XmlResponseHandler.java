@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+import org.n52.iceland.exception.ows.NoApplicableCodeException;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.sos.util.CodingHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.CountingInputStream;
+
+/**
+ * {@link SosResponseHandler} that parses the response stream directly into an
+ * {@link XmlObject}, without materializing the response as a string. The
+ * parsed response can be shared, e.g. by cached or coalesced requests, and is
+ * then decoded by each caller from a copy with {@link #decode(XmlObject)}. A
+ * response only used by the request that received it is decoded without a
+ * copy, see {@link #decode(XmlObject, boolean)}.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+public class XmlResponseHandler implements SosResponseHandler<XmlObject> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(XmlResponseHandler.class);
+
+    private static final String EXCEPTION_REPORT = "ExceptionReport";
+
+    /**
+     * Approximate ratio of the heap size of a parsed XmlBeans document to the
+     * size of the (decompressed) XML document. The store keeps the text as
+     * UTF-16 characters plus an object per element and attribute.
+     */
+    public static final int PARSED_SIZE_FACTOR = 5;
+
+    private volatile long contentLength;
+
+    private volatile XmlObject response;
+
+    @Override
+    public XmlObject handle(InputStream content) throws OwsExceptionReport, IOException {
+        try {
+            CountingInputStream counting = new CountingInputStream(content);
+            XmlObject xml = XmlObject.Factory.parse(counting);
+            contentLength = counting.getCount();
+            response = xml;
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("SOS response: {}", xml.xmlText());
+            }
+            return xml;
+        } catch (XmlException e) {
+            throw new NoApplicableCodeException().causedBy(e).withMessage("Error while parsing SOS response!");
+        }
+    }
+
+    /**
+     * @return the number of bytes of the last handled response, after the
+     *         content encoding was decoded
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the estimated heap size in bytes of the last parsed response,
+     *         see {@link #PARSED_SIZE_FACTOR}
+     */
+    public long getParsedSize() {
+        return contentLength * PARSED_SIZE_FACTOR;
+    }
+
+    /**
+     * @return the last handled response, e.g. to check if a response returned
+     *         by the response cache or the coalescer was received by this
+     *         handler
+     */
+    public XmlObject getResponse() {
+        return response;
+    }
+
+    /**
+     * Decode a copy of the possibly shared response, so neither the response
+     * nor the decoded objects are shared between callers
+     *
+     * @param xml
+     *            the parsed response
+     * @return the decoded response
+     * @throws OwsExceptionReport
+     *             If the response could not be decoded
+     */
+    public static Object decode(XmlObject xml) throws OwsExceptionReport {
+        return decode(xml, true);
+    }
+
+    /**
+     * Decode the response. A shared response is copied first, so the decoded
+     * objects are not shared between callers. An unshared response is decoded
+     * directly, as the copy doubles the memory of large responses.
+     *
+     * @param xml
+     *            the parsed response
+     * @param shared
+     *            if the response is shared, e.g. cached or passed to
+     *            coalesced callers
+     * @return the decoded response
+     * @throws OwsExceptionReport
+     *             If the response could not be decoded
+     */
+    public static Object decode(XmlObject xml, boolean shared) throws OwsExceptionReport {
+        return CodingHelper.decodeXmlElement(shared ? xml.copy() : xml);
+    }
+
+    /**
+     * @param xml
+     *            the parsed response
+     * @return <code>true</code>, if the response is an OWS exception report
+     */
+    public static boolean isExceptionReport(XmlObject xml) {
+        XmlCursor cursor = xml.newCursor();
+        try {
+            return cursor.toFirstChild() && EXCEPTION_REPORT.equals(cursor.getName().getLocalPart());
+        } finally {
+            cursor.dispose();
+        }
+    }
+
+}
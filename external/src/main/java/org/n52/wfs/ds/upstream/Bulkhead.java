@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of concurrent calls of one kind to the upstream SOS.
+ * Calls exceeding the limit wait up to the maximum wait duration for a free
+ * slot, calls exceeding the maximum number of waiting calls are rejected
+ * immediately.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+public class Bulkhead {
+
+    private final String name;
+
+    private int maxConcurrentCalls;
+
+    private int maxWaitingCalls;
+
+    private long maxWaitDuration;
+
+    private int activeCalls;
+
+    private int waitingCalls;
+
+    private long rejectedCalls;
+
+    public Bulkhead(String name, int maxConcurrentCalls, int maxWaitingCalls, long maxWaitDuration) {
+        this.name = name;
+        this.maxConcurrentCalls = Math.max(1, maxConcurrentCalls);
+        this.maxWaitingCalls = Math.max(0, maxWaitingCalls);
+        this.maxWaitDuration = Math.max(0, maxWaitDuration);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        this.maxConcurrentCalls = Math.max(1, maxConcurrentCalls);
+        notifyAll();
+    }
+
+    public synchronized void setMaxWaitingCalls(int maxWaitingCalls) {
+        this.maxWaitingCalls = Math.max(0, maxWaitingCalls);
+    }
+
+    /**
+     * @param maxWaitDuration
+     *            the maximum time in milliseconds a call waits for a free
+     *            slot
+     */
+    public synchronized void setMaxWaitDuration(long maxWaitDuration) {
+        this.maxWaitDuration = Math.max(0, maxWaitDuration);
+    }
+
+    /**
+     * Try to acquire a slot for a call, waiting up to the maximum wait
+     * duration. An acquired slot has to be released with {@link #release()}.
+     *
+     * @return <code>true</code>, if a slot was acquired
+     * @throws InterruptedException
+     *             If the thread was interrupted while waiting
+     */
+    public synchronized boolean tryAcquire() throws InterruptedException {
+        if (activeCalls < maxConcurrentCalls) {
+            activeCalls++;
+            return true;
+        }
+        if (waitingCalls >= maxWaitingCalls || maxWaitDuration == 0) {
+            rejectedCalls++;
+            return false;
+        }
+        waitingCalls++;
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitDuration);
+            while (activeCalls >= maxConcurrentCalls) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejectedCalls++;
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            activeCalls++;
+            return true;
+        } finally {
+            waitingCalls--;
+        }
+    }
+
+    /**
+     * Release a slot acquired with {@link #tryAcquire()}
+     */
+    public synchronized void release() {
+        activeCalls--;
+        // a single notified waiter may have timed out already
+        notifyAll();
+    }
+
+    public synchronized int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public synchronized int getActiveCalls() {
+        return activeCalls;
+    }
+
+    /**
+     * @return the number of calls waiting for a free slot (queue depth)
+     */
+    public synchronized int getWaitingCalls() {
+        return waitingCalls;
+    }
+
+    public synchronized long getRejectedCalls() {
+        return rejectedCalls;
+    }
+
+}
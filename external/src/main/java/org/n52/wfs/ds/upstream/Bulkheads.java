@@ -0,0 +1,184 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+import org.n52.iceland.exception.ows.NoApplicableCodeException;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.ows.OWSConstants;
+import org.n52.iceland.ogc.sos.SosConstants;
+import org.n52.wfs.exception.wfs.concrete.UpstreamCapacityExceededException;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Separate {@link Bulkhead}s per SOS operation, so that a burst of expensive
+ * GetObservation requests can not take all connections to the SOS and starve
+ * the GetFeatureOfInterest and GetCapabilities requests. Calls of other
+ * operations are not limited.
+ *
+ * The slots are taken per request to the SOS, below the response cache and
+ * the request coalescer, so the limits bound the concurrent upstream calls.
+ * The chunks of a split GetObservation request take a slot each, at most as
+ * many at once as the {@link UpstreamExecutor} runs concurrently.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class Bulkheads {
+
+    public static final String GET_OBSERVATION_MAX_CONCURRENT_CALLS_KEY =
+            "wfs.bulkhead.getObservation.maxConcurrentCalls";
+
+    public static final String GET_OBSERVATION_MAX_WAITING_CALLS_KEY = "wfs.bulkhead.getObservation.maxWaitingCalls";
+
+    public static final String GET_FEATURE_OF_INTEREST_MAX_CONCURRENT_CALLS_KEY =
+            "wfs.bulkhead.getFeatureOfInterest.maxConcurrentCalls";
+
+    public static final String GET_FEATURE_OF_INTEREST_MAX_WAITING_CALLS_KEY =
+            "wfs.bulkhead.getFeatureOfInterest.maxWaitingCalls";
+
+    public static final String GET_CAPABILITIES_MAX_CONCURRENT_CALLS_KEY =
+            "wfs.bulkhead.getCapabilities.maxConcurrentCalls";
+
+    public static final String GET_CAPABILITIES_MAX_WAITING_CALLS_KEY = "wfs.bulkhead.getCapabilities.maxWaitingCalls";
+
+    public static final String MAX_WAIT_DURATION_KEY = "wfs.bulkhead.maxWaitDuration";
+
+    private final Bulkhead getObservation = new Bulkhead(SosConstants.Operations.GetObservation.name(), 12, 50, 1000);
+
+    private final Bulkhead getFeatureOfInterest =
+            new Bulkhead(SosConstants.Operations.GetFeatureOfInterest.name(), 6, 50, 1000);
+
+    private final Bulkhead getCapabilities = new Bulkhead(OWSConstants.Operations.GetCapabilities.name(), 2, 5, 1000);
+
+    private final Map<String, Bulkhead> bulkheads = Maps.newHashMap();
+
+    public Bulkheads() {
+        bulkheads.put(getObservation.getName(), getObservation);
+        bulkheads.put(getFeatureOfInterest.getName(), getFeatureOfInterest);
+        bulkheads.put(getCapabilities.getName(), getCapabilities);
+    }
+
+    @Setting(GET_OBSERVATION_MAX_CONCURRENT_CALLS_KEY)
+    public void setGetObservationMaxConcurrentCalls(int maxConcurrentCalls) {
+        getObservation.setMaxConcurrentCalls(maxConcurrentCalls);
+    }
+
+    @Setting(GET_OBSERVATION_MAX_WAITING_CALLS_KEY)
+    public void setGetObservationMaxWaitingCalls(int maxWaitingCalls) {
+        getObservation.setMaxWaitingCalls(maxWaitingCalls);
+    }
+
+    @Setting(GET_FEATURE_OF_INTEREST_MAX_CONCURRENT_CALLS_KEY)
+    public void setGetFeatureOfInterestMaxConcurrentCalls(int maxConcurrentCalls) {
+        getFeatureOfInterest.setMaxConcurrentCalls(maxConcurrentCalls);
+    }
+
+    @Setting(GET_FEATURE_OF_INTEREST_MAX_WAITING_CALLS_KEY)
+    public void setGetFeatureOfInterestMaxWaitingCalls(int maxWaitingCalls) {
+        getFeatureOfInterest.setMaxWaitingCalls(maxWaitingCalls);
+    }
+
+    @Setting(GET_CAPABILITIES_MAX_CONCURRENT_CALLS_KEY)
+    public void setGetCapabilitiesMaxConcurrentCalls(int maxConcurrentCalls) {
+        getCapabilities.setMaxConcurrentCalls(maxConcurrentCalls);
+    }
+
+    @Setting(GET_CAPABILITIES_MAX_WAITING_CALLS_KEY)
+    public void setGetCapabilitiesMaxWaitingCalls(int maxWaitingCalls) {
+        getCapabilities.setMaxWaitingCalls(maxWaitingCalls);
+    }
+
+    /**
+     * @param maxWaitDuration
+     *            the maximum time in milliseconds a call waits for a free
+     *            slot
+     */
+    @Setting(MAX_WAIT_DURATION_KEY)
+    public void setMaxWaitDuration(int maxWaitDuration) {
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.setMaxWaitDuration(maxWaitDuration);
+        }
+    }
+
+    /**
+     * Execute the call within the bulkhead of the operation
+     *
+     * @param operation
+     *            the SOS operation name
+     * @param call
+     *            the call to execute
+     * @return the decoded response
+     * @throws OwsExceptionReport
+     *             If the call was rejected or failed
+     */
+    public <T> T execute(String operation, UpstreamCall<T> call) throws OwsExceptionReport {
+        Bulkhead bulkhead = bulkheads.get(operation);
+        if (bulkhead == null) {
+            return call.call();
+        }
+        try {
+            if (!bulkhead.tryAcquire()) {
+                throw new UpstreamCapacityExceededException().withMessage(
+                        "Too many concurrent %s requests to the SOS, the request was rejected!", operation);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoApplicableCodeException().causedBy(e);
+        }
+        try {
+            return call.call();
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * @param operation
+     *            the SOS operation name
+     * @return the bulkhead of the operation or <code>null</code>
+     */
+    public Bulkhead getBulkhead(String operation) {
+        return bulkheads.get(operation);
+    }
+
+    public Collection<Bulkhead> getBulkheads() {
+        return Collections.unmodifiableCollection(bulkheads.values());
+    }
+
+}
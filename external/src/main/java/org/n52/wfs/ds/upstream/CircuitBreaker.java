@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for the requests to the upstream SOS. The outcomes of the
+ * last calls are recorded in a count based sliding window. If the error rate
+ * or the rate of slow calls exceeds the threshold, the breaker opens and calls
+ * are rejected without contacting the SOS. After the open duration a limited
+ * number of probe calls is permitted (half-open). If they succeed the breaker
+ * closes again, otherwise it opens again.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static final String ENABLED_KEY = "wfs.circuitBreaker.enabled";
+
+    public static final String WINDOW_SIZE_KEY = "wfs.circuitBreaker.windowSize";
+
+    public static final String MINIMUM_CALLS_KEY = "wfs.circuitBreaker.minimumCalls";
+
+    public static final String ERROR_RATE_KEY = "wfs.circuitBreaker.errorRatePercent";
+
+    public static final String SLOW_CALL_DURATION_KEY = "wfs.circuitBreaker.slowCallDuration";
+
+    public static final String SLOW_CALL_RATE_KEY = "wfs.circuitBreaker.slowCallRatePercent";
+
+    public static final String OPEN_DURATION_KEY = "wfs.circuitBreaker.openDuration";
+
+    public static final String HALF_OPEN_CALLS_KEY = "wfs.circuitBreaker.halfOpenCalls";
+
+    /**
+     * States of the circuit breaker
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN;
+    }
+
+    private boolean enabled = true;
+
+    private int minimumCalls = 20;
+
+    private int errorRatePercent = 50;
+
+    private long slowCallDuration = 10000;
+
+    private int slowCallRatePercent = 80;
+
+    private long openDuration = 30000;
+
+    private int halfOpenCalls = 3;
+
+    private State state = State.CLOSED;
+
+    private boolean[] failures = new boolean[100];
+
+    private boolean[] slowCalls = new boolean[100];
+
+    private int windowIndex;
+
+    private int recordedCalls;
+
+    private long openedAt;
+
+    private int halfOpenPermits;
+
+    private int halfOpenSuccesses;
+
+    private long rejectedCalls;
+
+    private long stateTransitions;
+
+    @Setting(ENABLED_KEY)
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param windowSize
+     *            the number of calls in the sliding window
+     */
+    @Setting(WINDOW_SIZE_KEY)
+    public synchronized void setWindowSize(int windowSize) {
+        this.failures = new boolean[Math.max(1, windowSize)];
+        this.slowCalls = new boolean[Math.max(1, windowSize)];
+        resetWindow();
+        checkMinimumCalls();
+    }
+
+    /**
+     * @param minimumCalls
+     *            the minimum number of calls before the rates are evaluated
+     */
+    @Setting(MINIMUM_CALLS_KEY)
+    public synchronized void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = Math.max(1, minimumCalls);
+        checkMinimumCalls();
+    }
+
+    /**
+     * A window smaller than the minimum number of calls never reaches the
+     * minimum, the rates are then evaluated for the full window. The settings
+     * may be applied in any order, so the combination is not rejected.
+     */
+    private void checkMinimumCalls() {
+        if (minimumCalls > failures.length) {
+            LOGGER.warn("The minimum number of calls ({}) of the circuit breaker is larger than the window size "
+                    + "({}), the window size is used as minimum", minimumCalls, failures.length);
+        }
+    }
+
+    @Setting(ERROR_RATE_KEY)
+    public void setErrorRatePercent(int errorRatePercent) {
+        this.errorRatePercent = errorRatePercent;
+    }
+
+    /**
+     * @param slowCallDuration
+     *            the duration in milliseconds above which a call counts as
+     *            slow
+     */
+    @Setting(SLOW_CALL_DURATION_KEY)
+    public void setSlowCallDuration(int slowCallDuration) {
+        this.slowCallDuration = slowCallDuration;
+    }
+
+    @Setting(SLOW_CALL_RATE_KEY)
+    public void setSlowCallRatePercent(int slowCallRatePercent) {
+        this.slowCallRatePercent = slowCallRatePercent;
+    }
+
+    /**
+     * @param openDuration
+     *            the time in milliseconds the breaker stays open before probe
+     *            calls are permitted
+     */
+    @Setting(OPEN_DURATION_KEY)
+    public void setOpenDuration(int openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * @param halfOpenCalls
+     *            the number of probe calls in the half-open state
+     */
+    @Setting(HALF_OPEN_CALLS_KEY)
+    public void setHalfOpenCalls(int halfOpenCalls) {
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+    }
+
+    /**
+     * Check if a call is permitted. Each permitted call has to be completed
+     * with {@link #onSuccess(long)}, {@link #onError(long)} or
+     * {@link #onIgnored()}, otherwise the probe calls of the half-open state
+     * are never released.
+     *
+     * @return <code>true</code>, if the call is permitted
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (!enabled) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt >= openDuration) {
+                transitionTo(State.HALF_OPEN);
+            } else {
+                rejectedCalls++;
+                return false;
+            }
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenPermits >= halfOpenCalls) {
+                rejectedCalls++;
+                return false;
+            }
+            halfOpenPermits++;
+        }
+        return true;
+    }
+
+    /**
+     * Record a successful call
+     *
+     * @param duration
+     *            the call duration in milliseconds
+     */
+    public synchronized void onSuccess(long duration) {
+        record(false, duration);
+    }
+
+    /**
+     * Record a failed call
+     *
+     * @param duration
+     *            the call duration in milliseconds
+     */
+    public synchronized void onError(long duration) {
+        record(true, duration);
+    }
+
+    /**
+     * Release the permission of a call without recording an outcome, e.g.
+     * because the call was aborted or interrupted before the SOS responded
+     */
+    public synchronized void onIgnored() {
+        if (enabled && state == State.HALF_OPEN && halfOpenPermits > 0) {
+            halfOpenPermits--;
+        }
+    }
+
+    private void record(boolean failure, long duration) {
+        if (!enabled) {
+            return;
+        }
+        boolean slow = duration >= slowCallDuration;
+        if (state == State.HALF_OPEN) {
+            if (failure || slow) {
+                transitionTo(State.OPEN);
+            } else if (++halfOpenSuccesses >= halfOpenCalls) {
+                transitionTo(State.CLOSED);
+            }
+        } else if (state == State.CLOSED) {
+            failures[windowIndex] = failure;
+            slowCalls[windowIndex] = slow;
+            windowIndex = (windowIndex + 1) % failures.length;
+            recordedCalls = Math.min(recordedCalls + 1, failures.length);
+            if (recordedCalls >= Math.min(minimumCalls, failures.length) && exceedsThresholds()) {
+                transitionTo(State.OPEN);
+            }
+        }
+    }
+
+    private boolean exceedsThresholds() {
+        int failed = 0;
+        int slow = 0;
+        for (int i = 0; i < recordedCalls; i++) {
+            if (failures[i]) {
+                failed++;
+            }
+            if (slowCalls[i]) {
+                slow++;
+            }
+        }
+        return failed * 100 >= errorRatePercent * recordedCalls || slow * 100 >= slowCallRatePercent * recordedCalls;
+    }
+
+    private void transitionTo(State newState) {
+        LOGGER.warn("Circuit breaker for the SOS changes state from {} to {}", state, newState);
+        state = newState;
+        stateTransitions++;
+        halfOpenPermits = 0;
+        halfOpenSuccesses = 0;
+        if (newState == State.OPEN) {
+            openedAt = System.currentTimeMillis();
+        } else if (newState == State.CLOSED) {
+            resetWindow();
+        }
+    }
+
+    private void resetWindow() {
+        windowIndex = 0;
+        recordedCalls = 0;
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of calls rejected by the breaker
+     */
+    public synchronized long getRejectedCalls() {
+        return rejectedCalls;
+    }
+
+    /**
+     * @return the number of state transitions
+     */
+    public synchronized long getStateTransitions() {
+        return stateTransitions;
+    }
+
+}
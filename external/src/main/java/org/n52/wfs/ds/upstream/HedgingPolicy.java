@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Policy for hedged requests to the upstream SOS. If no response arrived
+ * after the hedging delay, a second identical request is sent and the first
+ * response wins. The delay is either fixed or the observed 95th percentile of
+ * the SOS latency. The latency is the time until the response headers
+ * arrived and is tracked per SOS operation, because e.g. GetCapabilities and
+ * GetObservation requests differ widely. The number of hedged requests is
+ * limited by a budget relative to the number of requests.
+ *
+ * Only use hedging for idempotent requests. All requests the proxy sends to
+ * the SOS (GetCapabilities, GetFeatureOfInterest, GetObservation) are.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class HedgingPolicy {
+
+    public static final String ENABLED_KEY = "wfs.hedging.enabled";
+
+    public static final String DELAY_KEY = "wfs.hedging.delay";
+
+    public static final String BUDGET_PERCENT_KEY = "wfs.hedging.budgetPercent";
+
+    private static final int LATENCY_PERCENTILE = 95;
+
+    /**
+     * Minimum number of recorded latencies before the observed percentile is
+     * used as delay
+     */
+    private static final int MIN_RECORDED_LATENCIES = 20;
+
+    private static final double MAX_BUDGET_BALANCE = 10.0;
+
+    private static final int LATENCY_CAPACITY = 1000;
+
+    private static final String UNKNOWN_OPERATION = "unknown";
+
+    private final ConcurrentMap<String, LatencyTracker> latencyTrackers = Maps.newConcurrentMap();
+
+    private final AtomicLong hedgedRequests = new AtomicLong();
+
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    private boolean enabled;
+
+    private int delay;
+
+    private double budgetRatio = 0.05;
+
+    private double budgetBalance;
+
+    @Setting(ENABLED_KEY)
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param delay
+     *            the fixed hedging delay in milliseconds, <code>0</code> to
+     *            use the observed 95th percentile latency
+     */
+    @Setting(DELAY_KEY)
+    public void setDelay(int delay) {
+        this.delay = Math.max(0, delay);
+    }
+
+    /**
+     * @param budgetPercent
+     *            the hedged requests allowed as percentage of the requests
+     */
+    @Setting(BUDGET_PERCENT_KEY)
+    public void setBudgetPercent(int budgetPercent) {
+        this.budgetRatio = Math.max(0, budgetPercent) / 100.0;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Record the latency of a successful call
+     *
+     * @param operation
+     *            the SOS operation, may be <code>null</code>
+     * @param latency
+     *            the time until the response headers arrived in milliseconds
+     */
+    public void recordLatency(String operation, long latency) {
+        getLatencyTracker(operation).record(latency);
+    }
+
+    /**
+     * Get the current hedging delay
+     *
+     * @param operation
+     *            the SOS operation, may be <code>null</code>
+     * @return the delay in milliseconds or <code>-1</code> if there are not
+     *         enough recorded latencies to derive it
+     */
+    public long getDelay(String operation) {
+        if (delay > 0) {
+            return delay;
+        }
+        LatencyTracker latencyTracker = getLatencyTracker(operation);
+        if (latencyTracker.getSize() < MIN_RECORDED_LATENCIES) {
+            return -1;
+        }
+        return latencyTracker.getPercentile(LATENCY_PERCENTILE);
+    }
+
+    private LatencyTracker getLatencyTracker(String operation) {
+        return latencyTrackers.computeIfAbsent(operation != null ? operation : UNKNOWN_OPERATION,
+                key -> new LatencyTracker(LATENCY_CAPACITY));
+    }
+
+    /**
+     * Record a new request, which adds to the hedging budget
+     */
+    public synchronized void onRequest() {
+        budgetBalance = Math.min(MAX_BUDGET_BALANCE, budgetBalance + budgetRatio);
+    }
+
+    /**
+     * Check if a hedged request is allowed and withdraw it from the budget
+     *
+     * @return <code>true</code>, if a hedged request may be sent
+     */
+    public synchronized boolean tryAcquireHedge() {
+        if (budgetBalance < 1.0) {
+            return false;
+        }
+        budgetBalance -= 1.0;
+        hedgedRequests.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Record that the hedged request won the race
+     */
+    public void onHedgeWin() {
+        hedgeWins.incrementAndGet();
+    }
+
+    /**
+     * @return the number of sent hedged requests
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     * @return the number of hedged requests that responded first
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import java.util.Arrays;
+
+/**
+ * Records the latencies of the most recent calls in a ring buffer and
+ * provides percentiles of them. The percentiles are recomputed after a number
+ * of new recordings, not on every request.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+public class LatencyTracker {
+
+    private static final int RECOMPUTE_INTERVAL = 50;
+
+    private final long[] latencies;
+
+    private int index;
+
+    private int size;
+
+    private int sinceRecompute;
+
+    private long[] sorted = new long[0];
+
+    /**
+     * constructor
+     *
+     * @param capacity
+     *            the number of recent latencies to keep
+     */
+    public LatencyTracker(int capacity) {
+        this.latencies = new long[Math.max(1, capacity)];
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param latency
+     *            the latency in milliseconds
+     */
+    public synchronized void record(long latency) {
+        latencies[index] = latency;
+        index = (index + 1) % latencies.length;
+        size = Math.min(size + 1, latencies.length);
+        sinceRecompute++;
+    }
+
+    /**
+     * Get the percentile of the recorded latencies
+     *
+     * @param percentile
+     *            the percentile, e.g. <code>95</code>
+     * @return the latency percentile in milliseconds or <code>-1</code> if no
+     *         latency is recorded
+     */
+    public synchronized long getPercentile(int percentile) {
+        if (size == 0) {
+            return -1;
+        }
+        if (sorted.length == 0 || sinceRecompute >= RECOMPUTE_INTERVAL) {
+            sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            sinceRecompute = 0;
+        }
+        int position = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.min(sorted.length - 1, Math.max(0, position))];
+    }
+
+    /**
+     * @return the number of recorded latencies in the buffer
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+}
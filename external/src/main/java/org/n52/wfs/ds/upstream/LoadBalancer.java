@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+import org.n52.iceland.exception.ows.NoApplicableCodeException;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Balances the requests across equivalent SOS endpoints using the power of
+ * two choices: two random available endpoints are compared and the one with
+ * fewer outstanding requests is used. Endpoints with consecutive failures are
+ * ejected passively for some time and re-admitted afterwards.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class LoadBalancer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadBalancer.class);
+
+    public static final String EJECTION_THRESHOLD_KEY = "wfs.loadBalancing.ejectionThreshold";
+
+    public static final String EJECTION_TIME_KEY = "wfs.loadBalancing.ejectionTime";
+
+    private volatile List<SosEndpoint> endpoints = Collections.emptyList();
+
+    private int ejectionThreshold = 5;
+
+    private long ejectionTime = 30000;
+
+    /**
+     * @param ejectionThreshold
+     *            the number of consecutive failures that ejects an endpoint
+     */
+    @Setting(EJECTION_THRESHOLD_KEY)
+    public void setEjectionThreshold(int ejectionThreshold) {
+        this.ejectionThreshold = Math.max(1, ejectionThreshold);
+    }
+
+    /**
+     * @param ejectionTime
+     *            the time in milliseconds an endpoint stays ejected
+     */
+    @Setting(EJECTION_TIME_KEY)
+    public void setEjectionTime(int ejectionTime) {
+        this.ejectionTime = ejectionTime;
+    }
+
+    /**
+     * Set the equivalent endpoints, the statistics of already known endpoints
+     * are kept
+     *
+     * @param uris
+     *            the endpoint URIs
+     */
+    public synchronized void setEndpoints(Collection<URI> uris) {
+        Map<URI, SosEndpoint> current = Maps.newHashMap();
+        for (SosEndpoint endpoint : endpoints) {
+            current.put(endpoint.getUri(), endpoint);
+        }
+        List<SosEndpoint> newEndpoints = Lists.newArrayListWithCapacity(uris.size());
+        for (URI uri : uris) {
+            SosEndpoint endpoint = current.get(uri);
+            newEndpoints.add(endpoint != null ? endpoint : new SosEndpoint(uri));
+        }
+        this.endpoints = ImmutableList.copyOf(newEndpoints);
+        LOGGER.info("SOS endpoints: {}", this.endpoints);
+    }
+
+    /**
+     * @return the endpoints with their statistics
+     */
+    public List<SosEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Select the endpoint for the next request. The request has to be
+     * completed with {@link #onSuccess(SosEndpoint, long)} or
+     * {@link #onFailure(SosEndpoint)} or {@link #onCancel(SosEndpoint)} after
+     * the response was consumed.
+     *
+     * @return the selected endpoint
+     * @throws OwsExceptionReport
+     *             If no endpoint is configured
+     */
+    public SosEndpoint select() throws OwsExceptionReport {
+        List<SosEndpoint> all = this.endpoints;
+        if (all.isEmpty()) {
+            throw new NoApplicableCodeException().withMessage("No SOS endpoint configured!");
+        }
+        SosEndpoint selected;
+        if (all.size() == 1) {
+            selected = all.get(0);
+        } else {
+            List<SosEndpoint> available = Lists.newArrayListWithCapacity(all.size());
+            for (SosEndpoint endpoint : all) {
+                if (endpoint.isAvailable()) {
+                    available.add(endpoint);
+                }
+            }
+            if (available.isEmpty()) {
+                // all endpoints are ejected, use the one which is re-admitted next
+                selected = all.get(0);
+                for (SosEndpoint endpoint : all) {
+                    if (endpoint.getEjectedUntil() < selected.getEjectedUntil()) {
+                        selected = endpoint;
+                    }
+                }
+            } else if (available.size() == 1) {
+                selected = available.get(0);
+            } else {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int first = random.nextInt(available.size());
+                int second = random.nextInt(available.size() - 1);
+                if (second >= first) {
+                    second++;
+                }
+                selected = choose(available.get(first), available.get(second));
+            }
+        }
+        selected.onStart();
+        return selected;
+    }
+
+    private SosEndpoint choose(SosEndpoint first, SosEndpoint second) {
+        int firstOutstanding = first.getOutstanding();
+        int secondOutstanding = second.getOutstanding();
+        if (firstOutstanding == secondOutstanding) {
+            return first.getAverageLatency() <= second.getAverageLatency() ? first : second;
+        }
+        return firstOutstanding < secondOutstanding ? first : second;
+    }
+
+    /**
+     * Record a successful request
+     *
+     * @param endpoint
+     *            the endpoint
+     * @param latency
+     *            the latency in milliseconds
+     */
+    public void onSuccess(SosEndpoint endpoint, long latency) {
+        endpoint.onSuccess(latency);
+    }
+
+    /**
+     * Record a cancelled request, which neither counts as success nor as
+     * failure
+     *
+     * @param endpoint
+     *            the endpoint
+     */
+    public void onCancel(SosEndpoint endpoint) {
+        endpoint.onCancel();
+    }
+
+    /**
+     * Record a failed request, consecutive failures eject the endpoint
+     *
+     * @param endpoint
+     *            the endpoint
+     */
+    public void onFailure(SosEndpoint endpoint) {
+        if (endpoint.onFailure(ejectionThreshold, ejectionTime) && endpoints.size() > 1) {
+            LOGGER.warn("SOS endpoint {} is ejected for {} ms after {} consecutive failures", endpoint,
+                    ejectionTime, ejectionThreshold);
+        }
+    }
+
+}
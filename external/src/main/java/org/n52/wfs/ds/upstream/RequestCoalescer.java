@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+import org.n52.iceland.exception.ows.NoApplicableCodeException;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.wfs.exception.wfs.concrete.UpstreamCapacityExceededException;
+import org.n52.wfs.exception.wfs.concrete.UpstreamUnavailableException;
+
+/**
+ * Single-flight coalescing of identical concurrent SOS requests. The first
+ * caller for a key executes the call, concurrent callers with the same key
+ * wait for it and share the response. The key is the canonical encoded SOS
+ * request, the entry is removed as soon as the call completed, so later
+ * callers query the SOS again.
+ *
+ * The shared response is handed to all waiting callers and must not be
+ * modified by them, the callers share the parsed XML and decode their own
+ * copy. If the call failed, each waiting caller gets its own exception with
+ * the failure of the first caller as cause. If the first caller was
+ * interrupted, e.g. because its request was cancelled, the failure is not
+ * passed on, one of the waiting callers executes the call again.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class RequestCoalescer {
+
+    public static final String ENABLED_KEY = "wfs.coalescing.enabled";
+
+    private static final Object RETRY = new Object();
+
+    private final ConcurrentMap<String, CompletableFuture<Object>> inflight = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    private boolean enabled = true;
+
+    @Setting(ENABLED_KEY)
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Execute the call or join an identical call in flight
+     *
+     * @param key
+     *            the canonical request, e.g. the encoded SOS request
+     * @param call
+     *            the call to execute
+     * @return the (possibly shared) response
+     * @throws OwsExceptionReport
+     *             If the call failed
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, UpstreamCall<T> call) throws OwsExceptionReport {
+        requests.incrementAndGet();
+        if (!enabled) {
+            return call.call();
+        }
+        boolean coalesced = false;
+        while (true) {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            CompletableFuture<Object> existing = inflight.putIfAbsent(key, future);
+            if (existing == null) {
+                return lead(key, future, call);
+            }
+            if (!coalesced) {
+                coalescedRequests.incrementAndGet();
+                coalesced = true;
+            }
+            Object response = await(existing);
+            if (response != RETRY) {
+                return (T) response;
+            }
+        }
+    }
+
+    private <T> T lead(String key, CompletableFuture<Object> future, UpstreamCall<T> call)
+            throws OwsExceptionReport {
+        try {
+            T value = call.call();
+            future.complete(value);
+            return value;
+        } catch (Throwable t) {
+            // any failure completes the waiting callers, an interruption is
+            // specific to this caller and is retried by them
+            future.completeExceptionally(isInterruption(t) ? new LeaderInterruptedException() : t);
+            throw t;
+        } finally {
+            inflight.remove(key, future);
+        }
+    }
+
+    private static boolean isInterruption(Throwable t) {
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof ClosedByInterruptException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Object await(CompletableFuture<Object> future) throws OwsExceptionReport {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoApplicableCodeException().causedBy(e)
+                    .withMessage("Interrupted while waiting for a coalesced SOS request!");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof LeaderInterruptedException) {
+                return RETRY;
+            }
+            // each caller gets its own exception instance
+            if (cause instanceof UpstreamUnavailableException) {
+                throw new UpstreamUnavailableException().causedBy(cause).withMessage("%s", cause.getMessage());
+            } else if (cause instanceof UpstreamCapacityExceededException) {
+                throw new UpstreamCapacityExceededException().causedBy(cause).withMessage("%s",
+                        cause.getMessage());
+            }
+            throw new NoApplicableCodeException().causedBy(cause)
+                    .withMessage("Error while waiting for a coalesced SOS request: %s", cause.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of requests
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests that shared the response of an identical
+     *         request in flight
+     */
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
+    }
+
+    /**
+     * @return the number of distinct requests currently in flight
+     */
+    public int getInflightRequests() {
+        return inflight.size();
+    }
+
+    /**
+     * Failure of a call whose caller was interrupted
+     */
+    private static class LeaderInterruptedException extends RuntimeException {
+
+        private static final long serialVersionUID = 3390521837458710396L;
+
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.lifecycle.Destroyable;
+import org.n52.iceland.ogc.sos.SosConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded LRU cache of SOS responses, keyed by the canonical encoded SOS
+ * request. Each operation has its own time to live, an operation without or
+ * with a time to live of <code>0</code> is not cached, which is the default.
+ * Entries are evicted in least recently used order when the summed weight
+ * exceeds the maximum size. The weight of a parsed XML response is its
+ * estimated heap size, see
+ * {@link org.n52.wfs.ds.XmlResponseHandler#getParsedSize()}, so the maximum
+ * size approximately bounds the heap used by the cache.
+ *
+ * Caching trades freshness for load: observations inserted into the SOS are
+ * not visible until the cached response expired, i.e. for up to the time to
+ * live plus the stale-while-revalidate duration. If stale-while-revalidate is
+ * enabled, an expired entry is still returned for the configured duration
+ * while it is refreshed in the background.
+ *
+ * The cached responses are shared, the callers cache the parsed XML and
+ * decode a copy for each request, see
+ * {@link org.n52.wfs.ds.XmlResponseHandler#decode(org.apache.xmlbeans.XmlObject)}.
+ * Responses that are not cacheable, e.g. exception reports returned by the
+ * SOS, are not cached.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class ResponseCache implements Destroyable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCache.class);
+
+    public static final String GET_OBSERVATION_TTL_KEY = "wfs.responseCache.getObservation.ttl";
+
+    public static final String GET_FEATURE_OF_INTEREST_TTL_KEY = "wfs.responseCache.getFeatureOfInterest.ttl";
+
+    public static final String MAX_SIZE_KEY = "wfs.responseCache.maxSize";
+
+    public static final String STALE_WHILE_REVALIDATE_KEY = "wfs.responseCache.staleWhileRevalidate";
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, Long> timeToLive = Maps.newConcurrentMap();
+
+    private final ExecutorService revalidationExecutor = Executors.newFixedThreadPool(2,
+            new ThreadFactoryBuilder().setNameFormat("sos-revalidate-%d").setDaemon(true).build());
+
+    private long maxWeight = 64 * MEGABYTE;
+
+    private long staleWhileRevalidate;
+
+    private long weight;
+
+    private long hits;
+
+    private long staleHits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * @param ttl
+     *            the time to live of GetObservation responses in
+     *            milliseconds, <code>0</code> to disable caching
+     */
+    @Setting(GET_OBSERVATION_TTL_KEY)
+    public void setGetObservationTimeToLive(int ttl) {
+        timeToLive.put(SosConstants.Operations.GetObservation.name(), (long) Math.max(0, ttl));
+    }
+
+    /**
+     * @param ttl
+     *            the time to live of GetFeatureOfInterest responses in
+     *            milliseconds, <code>0</code> to disable caching
+     */
+    @Setting(GET_FEATURE_OF_INTEREST_TTL_KEY)
+    public void setGetFeatureOfInterestTimeToLive(int ttl) {
+        timeToLive.put(SosConstants.Operations.GetFeatureOfInterest.name(), (long) Math.max(0, ttl));
+    }
+
+    /**
+     * @param maxSize
+     *            the maximum summed weight, i.e. estimated heap size, of the
+     *            cached responses in megabytes
+     */
+    @Setting(MAX_SIZE_KEY)
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxWeight = Math.max(0, maxSize) * MEGABYTE;
+        evict();
+    }
+
+    /**
+     * @param staleWhileRevalidate
+     *            the time in milliseconds an expired response is still
+     *            returned while it is refreshed, <code>0</code> to disable
+     */
+    @Setting(STALE_WHILE_REVALIDATE_KEY)
+    public void setStaleWhileRevalidate(int staleWhileRevalidate) {
+        this.staleWhileRevalidate = Math.max(0, staleWhileRevalidate);
+    }
+
+    /**
+     * Get the cached response or execute the call and cache its response
+     *
+     * @param operation
+     *            the SOS operation name
+     * @param key
+     *            the canonical request, e.g. the encoded SOS request
+     * @param call
+     *            the call to execute on a cache miss
+     * @return the (possibly cached and shared) response
+     * @throws OwsExceptionReport
+     *             If the call failed
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String operation, String key, UpstreamCall<WeightedResponse<T>> call)
+            throws OwsExceptionReport {
+        long ttl = getTimeToLive(operation);
+        if (ttl <= 0) {
+            return call.call().getResponse();
+        }
+        long now = System.currentTimeMillis();
+        Entry stale = null;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (now < entry.expires) {
+                    hits++;
+                    return (T) entry.response;
+                } else if (now < entry.expires + staleWhileRevalidate) {
+                    staleHits++;
+                    stale = entry;
+                } else {
+                    remove(key);
+                }
+            }
+            if (stale == null) {
+                misses++;
+            }
+        }
+        if (stale != null) {
+            revalidate(stale, key, ttl, call);
+            return (T) stale.response;
+        }
+        return load(key, ttl, call);
+    }
+
+    private <T> T load(String key, long ttl, UpstreamCall<WeightedResponse<T>> call) throws OwsExceptionReport {
+        WeightedResponse<T> response = call.call();
+        put(key, ttl, response);
+        return response.getResponse();
+    }
+
+    private <T> void revalidate(Entry entry, String key, long ttl, UpstreamCall<WeightedResponse<T>> call) {
+        synchronized (this) {
+            if (entry.revalidating) {
+                return;
+            }
+            entry.revalidating = true;
+        }
+        try {
+            revalidationExecutor.execute(() -> {
+                try {
+                    load(key, ttl, call);
+                } catch (OwsExceptionReport | RuntimeException e) {
+                    LOGGER.warn("Error while revalidating cached SOS response", e);
+                } finally {
+                    // the entry is still cached if the new response was not
+                    // stored, e.g. an exception report, and is revalidated
+                    // again by the next request
+                    synchronized (this) {
+                        entry.revalidating = false;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                entry.revalidating = false;
+            }
+        }
+    }
+
+    private synchronized void put(String key, long ttl, WeightedResponse<?> response) {
+        if (response.getResponse() == null || !response.isCacheable()
+                || response.getResponse() instanceof OwsExceptionReport || response.getWeight() > maxWeight) {
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(response.getResponse(), response.getWeight(),
+                System.currentTimeMillis() + ttl));
+        weight += response.getWeight();
+        evict();
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            weight -= iterator.next().weight;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @param operation
+     *            the SOS operation name
+     * @return <code>true</code>, if responses of the operation are cached and
+     *         may therefore be shared
+     */
+    public boolean isCached(String operation) {
+        return getTimeToLive(operation) > 0;
+    }
+
+    private long getTimeToLive(String operation) {
+        Long ttl = timeToLive.get(operation);
+        return ttl != null ? ttl : 0;
+    }
+
+    /**
+     * Remove all cached responses
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return the summed weight of the cached responses in bytes
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of expired responses returned while they were
+     *         revalidated
+     */
+    public synchronized long getStaleHits() {
+        return staleHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public void destroy() {
+        revalidationExecutor.shutdownNow();
+    }
+
+    private static class Entry {
+
+        private final Object response;
+
+        private final long weight;
+
+        private final long expires;
+
+        private boolean revalidating;
+
+        Entry(Object response, long weight, long expires) {
+            this.response = response;
+            this.weight = weight;
+            this.expires = expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+
+/**
+ * Retry policy for requests to the upstream SOS. Failed requests are retried
+ * with an exponential backoff with full jitter up to a maximum number of
+ * attempts. A global retry budget limits the retries to a fraction of the
+ * requests, so retries can not amplify an outage of the SOS.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class RetryPolicy {
+
+    public static final String MAX_ATTEMPTS_KEY = "wfs.retry.maxAttempts";
+
+    public static final String INITIAL_BACKOFF_KEY = "wfs.retry.initialBackoff";
+
+    public static final String MAX_BACKOFF_KEY = "wfs.retry.maxBackoff";
+
+    public static final String BUDGET_PERCENT_KEY = "wfs.retry.budgetPercent";
+
+    /**
+     * Maximum number of retries that can be saved up in the budget
+     */
+    private static final double MAX_BUDGET_BALANCE = 10.0;
+
+    private int maxAttempts = 3;
+
+    private int initialBackoff = 100;
+
+    private int maxBackoff = 2000;
+
+    private double budgetRatio = 0.2;
+
+    private double budgetBalance = MAX_BUDGET_BALANCE;
+
+    private long retries;
+
+    private long exhaustedBudget;
+
+    /**
+     * @param maxAttempts
+     *            the maximum number of attempts per request, including the
+     *            first one
+     */
+    @Setting(MAX_ATTEMPTS_KEY)
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * @param initialBackoff
+     *            the backoff of the first retry in milliseconds
+     */
+    @Setting(INITIAL_BACKOFF_KEY)
+    public void setInitialBackoff(int initialBackoff) {
+        this.initialBackoff = Math.max(0, initialBackoff);
+    }
+
+    /**
+     * @param maxBackoff
+     *            the maximum backoff in milliseconds
+     */
+    @Setting(MAX_BACKOFF_KEY)
+    public void setMaxBackoff(int maxBackoff) {
+        this.maxBackoff = Math.max(0, maxBackoff);
+    }
+
+    /**
+     * @param budgetPercent
+     *            the retries allowed as percentage of the requests
+     */
+    @Setting(BUDGET_PERCENT_KEY)
+    public void setBudgetPercent(int budgetPercent) {
+        this.budgetRatio = Math.max(0, budgetPercent) / 100.0;
+    }
+
+    /**
+     * @return the maximum number of attempts per request
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Record a new request, which adds to the retry budget
+     */
+    public synchronized void onRequest() {
+        budgetBalance = Math.min(MAX_BUDGET_BALANCE, budgetBalance + budgetRatio);
+    }
+
+    /**
+     * Check if the exception is retryable
+     *
+     * @param e
+     *            the exception
+     * @return <code>true</code>, if the request may be retried
+     */
+    public boolean isRetryable(IOException e) {
+        // a retry would only queue again for a pooled connection or fail again
+        return e != null && !(e instanceof ConnectionPoolTimeoutException) && !(e instanceof UnknownHostException);
+    }
+
+    /**
+     * Check if the HTTP status code is retryable
+     *
+     * @param statusCode
+     *            the HTTP status code
+     * @return <code>true</code>, if the request may be retried
+     */
+    public boolean isRetryable(int statusCode) {
+        return statusCode == HttpStatus.SC_BAD_GATEWAY || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || statusCode == HttpStatus.SC_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * Check if another attempt is allowed and withdraw it from the retry
+     * budget
+     *
+     * @param attempt
+     *            the number of the failed attempt, starting with 1
+     * @return <code>true</code>, if another attempt is allowed
+     */
+    public synchronized boolean canRetry(int attempt) {
+        if (attempt >= maxAttempts) {
+            return false;
+        }
+        if (budgetBalance < 1.0) {
+            exhaustedBudget++;
+            return false;
+        }
+        budgetBalance -= 1.0;
+        retries++;
+        return true;
+    }
+
+    /**
+     * Get the backoff before the next attempt: a random value between zero
+     * and the exponentially growing upper bound.
+     *
+     * @param attempt
+     *            the number of the failed attempt, starting with 1
+     * @return the backoff in milliseconds
+     */
+    public long getBackoff(int attempt) {
+        long bound = Math.min(maxBackoff, (long) (initialBackoff * Math.pow(2, Math.max(0, attempt - 1))));
+        if (bound <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * @return the number of executed retries
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return the number of retries refused because the budget was exhausted
+     */
+    public synchronized long getExhaustedBudget() {
+        return exhaustedBudget;
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import java.net.URI;
+
+/**
+ * One of the equivalent SOS endpoints the requests are balanced across. Keeps
+ * track of the outstanding requests, the latency and the errors of the
+ * endpoint and whether it is currently ejected because of consecutive
+ * failures.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+public class SosEndpoint {
+
+    /**
+     * Weight of a new latency in the exponentially weighted moving average
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final URI uri;
+
+    private int outstanding;
+
+    private long requests;
+
+    private long errors;
+
+    private double averageLatency;
+
+    private int consecutiveFailures;
+
+    private long ejectedUntil;
+
+    private long ejections;
+
+    /**
+     * constructor
+     *
+     * @param uri
+     *            the endpoint URI
+     */
+    public SosEndpoint(URI uri) {
+        this.uri = uri;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    synchronized void onStart() {
+        outstanding++;
+        requests++;
+    }
+
+    synchronized void onSuccess(long latency) {
+        outstanding--;
+        consecutiveFailures = 0;
+        averageLatency = averageLatency == 0 ? latency
+                : LATENCY_WEIGHT * latency + (1 - LATENCY_WEIGHT) * averageLatency;
+    }
+
+    synchronized void onCancel() {
+        outstanding--;
+    }
+
+    /**
+     * @return <code>true</code>, if the endpoint was ejected by this failure
+     */
+    synchronized boolean onFailure(int ejectionThreshold, long ejectionTime) {
+        outstanding--;
+        errors++;
+        consecutiveFailures++;
+        if (consecutiveFailures >= ejectionThreshold && isAvailable()) {
+            ejectedUntil = System.currentTimeMillis() + ejectionTime;
+            ejections++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return <code>true</code>, if the endpoint is not ejected
+     */
+    public synchronized boolean isAvailable() {
+        return System.currentTimeMillis() >= ejectedUntil;
+    }
+
+    synchronized long getEjectedUntil() {
+        return ejectedUntil;
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * @return the number of requests sent to this endpoint
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the number of failed requests
+     */
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the moving average of the latency in milliseconds
+     */
+    public synchronized double getAverageLatency() {
+        return averageLatency;
+    }
+
+    /**
+     * @return the number of times the endpoint was ejected
+     */
+    public synchronized long getEjections() {
+        return ejections;
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+
+}
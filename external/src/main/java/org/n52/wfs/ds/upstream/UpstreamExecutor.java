@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.n52.iceland.config.annotation.Configurable;
+import org.n52.iceland.config.annotation.Setting;
+import org.n52.iceland.exception.ows.NoApplicableCodeException;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.lifecycle.Destroyable;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded executor for independent calls to the upstream SOS, e.g. the
+ * queries and type names of one GetFeature request.
+ *
+ * The calling thread executes all calls that were not yet started by a pool
+ * thread itself, so the calling thread never waits for a queued call. This
+ * keeps nested fan-outs from dead-locking the bounded pool and calls that
+ * do not fit into the queue are simply executed by the caller.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+@Configurable
+public class UpstreamExecutor implements Destroyable {
+
+    public static final String THREADS_KEY = "wfs.parallel.threads";
+
+    private static final int QUEUE_SIZE = 1000;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(16, 16, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE_SIZE),
+            new ThreadFactoryBuilder().setNameFormat("sos-fan-out-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.DiscardPolicy());
+
+    private volatile boolean sequential;
+
+    public UpstreamExecutor() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param threads
+     *            the number of pool threads, <code>0</code> to execute all
+     *            calls sequentially in the calling thread
+     */
+    @Setting(THREADS_KEY)
+    public void setThreads(int threads) {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(Math.max(1, threads));
+            executor.setMaximumPoolSize(Math.max(1, threads));
+        }
+        this.sequential = threads <= 0;
+    }
+
+    /**
+     * Execute the calls concurrently. If a call fails, the calls not yet
+     * completed are cancelled immediately and the exception is thrown.
+     * Failures are detected in the order the calls complete.
+     *
+     * @param calls
+     *            the calls to execute
+     * @return the results in the order of the calls
+     * @throws OwsExceptionReport
+     *             If a call failed
+     */
+    public <T> List<T> invokeAll(List<? extends UpstreamCall<T>> calls) throws OwsExceptionReport {
+        if (calls.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<T> results = Lists.newArrayListWithCapacity(calls.size());
+        if (sequential || calls.size() == 1) {
+            for (UpstreamCall<T> call : calls) {
+                results.add(call.call());
+            }
+            return results;
+        }
+        BlockingQueue<Future<T>> completed = new LinkedBlockingQueue<>();
+        List<FutureTask<T>> tasks = Lists.newArrayListWithCapacity(calls.size());
+        for (UpstreamCall<T> call : calls) {
+            tasks.add(new CompletingTask<>(call, completed, tasks));
+        }
+        // the first call is always executed by the caller
+        for (FutureTask<T> task : tasks.subList(1, tasks.size())) {
+            executor.execute(task);
+        }
+        try {
+            Iterator<FutureTask<T>> unstarted = tasks.iterator();
+            for (int remaining = tasks.size(); remaining > 0; remaining--) {
+                Future<T> done = completed.poll();
+                while (done == null && unstarted.hasNext()) {
+                    // no-op if the task was already started by a pool thread
+                    FutureTask<T> task = unstarted.next();
+                    task.run();
+                    if (task.isCancelled()) {
+                        // cancelled by a failed call, the interrupt was meant
+                        // for the task only
+                        Thread.interrupted();
+                    }
+                    done = completed.poll();
+                }
+                if (done == null) {
+                    done = completed.take();
+                }
+                // the failed call is completed before the calls it cancels
+                done.get();
+            }
+            for (FutureTask<T> task : tasks) {
+                results.add(task.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoApplicableCodeException().causedBy(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OwsExceptionReport) {
+                throw (OwsExceptionReport) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new NoApplicableCodeException().causedBy(e.getCause());
+        } catch (CancellationException e) {
+            throw new NoApplicableCodeException().causedBy(e);
+        } finally {
+            for (FutureTask<T> task : tasks) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return the number of threads currently executing calls
+     */
+    public int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of calls waiting in the queue
+     */
+    public int getQueuedCalls() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Task that reports its completion to the queue and cancels its sibling
+     * tasks if it fails
+     */
+    private static class CompletingTask<T> extends FutureTask<T> {
+
+        private final BlockingQueue<Future<T>> completed;
+
+        private final List<FutureTask<T>> siblings;
+
+        CompletingTask(UpstreamCall<T> call, BlockingQueue<Future<T>> completed, List<FutureTask<T>> siblings) {
+            super(call::call);
+            this.completed = completed;
+            this.siblings = siblings;
+        }
+
+        @Override
+        protected void done() {
+            completed.add(this);
+            if (!isCancelled() && isFailed()) {
+                for (FutureTask<T> sibling : siblings) {
+                    sibling.cancel(true);
+                }
+            }
+        }
+
+        private boolean isFailed() {
+            try {
+                get();
+                return false;
+            } catch (ExecutionException e) {
+                return true;
+            } catch (InterruptedException | CancellationException e) {
+                return false;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+/**
+ * A SOS response with its approximate weight in bytes
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ * @param <T>
+ *            the type of the response
+ */
+public class WeightedResponse<T> {
+
+    private final T response;
+
+    private final long weight;
+
+    private final boolean cacheable;
+
+    public WeightedResponse(T response, long weight) {
+        this(response, weight, true);
+    }
+
+    /**
+     * @param response
+     *            the response
+     * @param weight
+     *            the approximate weight in bytes
+     * @param cacheable
+     *            whether the response may be cached, e.g. not for exception
+     *            reports
+     */
+    public WeightedResponse(T response, long weight, boolean cacheable) {
+        this.response = response;
+        this.weight = Math.max(0, weight);
+        this.cacheable = cacheable;
+    }
+
+    public T getResponse() {
+        return response;
+    }
+
+    /**
+     * @return the approximate weight in bytes, e.g. the size of the encoded
+     *         response
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+}
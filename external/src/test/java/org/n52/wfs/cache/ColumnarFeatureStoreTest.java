@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.cache;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Set;
+
+import org.junit.Test;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.gml.AbstractFeature;
+import org.n52.sos.ogc.om.features.samplingFeatures.SamplingFeature;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Point;
+
+public class ColumnarFeatureStoreTest {
+
+    @Test
+    public void testColumnarCache() throws OwsExceptionReport {
+        Set<AbstractFeature> features = Sets.newHashSet();
+        for (int i = 0; i < 100; i++) {
+            features.add(InMemoryCacheImplTest.feature("feature" + i, i, i));
+        }
+        InMemoryCacheImpl cache = new InMemoryCacheImpl();
+        cache.setAbstractFeatures(features, true);
+        assertThat(cache.getSnapshot().isColumnar(), is(true));
+        assertThat(cache.getAbstractFeatures().size(), is(100));
+        assertThat(cache.getAbstractFeatures(new Envelope(9.5, 12.5, 9.5, 12.5)).size(), is(3));
+        assertThat(cache.getAbstractFeaturesByIdentifier(Lists.newArrayList("feature1", "unknown")).size(), is(1));
+        assertThat(cache.getAbstractFeaturesByResourceId(Lists.newArrayList("sf_feature2", "feature3")).size(), is(2));
+
+        SamplingFeature feature = (SamplingFeature) cache
+                .getAbstractFeaturesByIdentifier(Lists.newArrayList("feature7")).iterator().next();
+        assertThat(feature.getGmlId(), is("sf_feature7"));
+        assertThat(((Point) feature.getGeometry()).getX(), is(7.0));
+        assertThat(feature.getGeometry().getSRID(), is(4326));
+
+        // incremental updates keep the columnar representation
+        cache.updateAbstractFeatures(Lists.<AbstractFeature> newArrayList(InMemoryCacheImplTest.feature("new", 0, 0)),
+                Lists.newArrayList("feature2"));
+        assertThat(cache.getSnapshot().isColumnar(), is(true));
+        assertThat(cache.getSnapshot().getIdentifiers().contains("feature2"), is(false));
+        assertThat(cache.getAbstractFeatures(new Envelope(-0.5, 0.5, -0.5, 0.5)).size(), is(2));
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.cache;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.gml.AbstractFeature;
+import org.n52.sos.ogc.om.features.samplingFeatures.SamplingFeature;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+public class FeatureSnapshotFileTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException, OwsExceptionReport {
+        Set<AbstractFeature> features = Sets.newHashSet();
+        for (int i = 0; i < 10; i++) {
+            SamplingFeature feature = InMemoryCacheImplTest.feature("feature" + i, i, i + 0.5);
+            feature.addName("name" + i);
+            features.add(feature);
+        }
+        Path file = folder.getRoot().toPath().resolve("cache.bin");
+        assertThat(FeatureSnapshotFile.write(features, file), is(10));
+
+        Map<String, SamplingFeature> read = Maps.newHashMap();
+        for (AbstractFeature feature : FeatureSnapshotFile.read(file)) {
+            read.put(feature.getIdentifier(), (SamplingFeature) feature);
+        }
+        assertThat(read.size(), is(10));
+        SamplingFeature feature = read.get("feature3");
+        assertThat(feature.getGmlId(), is("sf_feature3"));
+        assertThat(feature.getFirstName().getValue(), is("name3"));
+        assertThat(feature.getGeometry().getSRID(), is(4326));
+        assertThat(feature.getGeometry().getCoordinate().x, is(3.0));
+        assertThat(feature.getGeometry().getCoordinate().y, is(3.5));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("invalid.bin");
+        Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        FeatureSnapshotFile.read(file);
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.cache;
+
+import java.util.Set;
+
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.gml.AbstractFeature;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Compares the heap footprint of the cached features as objects and in a
+ * {@link ColumnarFeatureStore}.
+ *
+ * Run {@link #main(String[])} with a fixed heap to get stable numbers:
+ *
+ * <pre>
+ * -Xms1g -Xmx1g -Dfootprint.features=100000
+ * </pre>
+ *
+ * @since 1.0.0
+ *
+ */
+public class FeatureStoreFootprint {
+
+    public static void main(String[] args) throws OwsExceptionReport {
+        int count = Integer.getInteger("footprint.features", 100000);
+        Set<AbstractFeature> features = Sets.newHashSetWithExpectedSize(count);
+        long before = usedHeap();
+        for (int i = 0; i < count; i++) {
+            features.add(InMemoryCacheImplTest.feature("http://www.example.org/feature/" + i, i % 360 - 180,
+                    i % 180 - 90));
+        }
+        ImmutableSet<AbstractFeature> objects = ImmutableSet.copyOf(features);
+        features = null;
+        long objectHeap = usedHeap() - before;
+
+        before = usedHeap();
+        ColumnarFeatureStore store = ColumnarFeatureStore.of(objects);
+        long columnarHeap = usedHeap() - before;
+
+        System.out.println(String.format("%d features", count));
+        System.out.println(String.format("objects:  %,d bytes, %d bytes per feature", objectHeap, objectHeap / count));
+        System.out.println(String.format("columnar: %,d bytes, %d bytes per feature (estimated %d)", columnarHeap,
+                columnarHeap / count, store.getHeapSize() / count));
+        // keep both reachable until measured
+        System.out.println(objects.size() + store.size());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
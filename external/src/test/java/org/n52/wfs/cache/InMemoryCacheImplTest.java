@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.cache;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.apache.xmlbeans.XmlObject;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.gml.AbstractFeature;
+import org.n52.iceland.ogc.gml.CodeWithAuthority;
+import org.n52.sos.ogc.om.features.samplingFeatures.SamplingFeature;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+
+public class InMemoryCacheImplTest {
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory(new PrecisionModel(), 4326);
+
+    private static final QName TYPE = new QName("http://www.opengis.net/samplingSpatial/2.0", "SF_SpatialSamplingFeature");
+
+    private final InMemoryCacheImpl cache = new InMemoryCacheImpl();
+
+    @Before
+    public void setUp() throws OwsExceptionReport {
+        Set<AbstractFeature> features = Sets.newHashSet();
+        for (int i = 0; i < 100; i++) {
+            features.add(feature("feature" + i, i, i));
+        }
+        cache.setAbstractFeatures(features);
+    }
+
+    @Test
+    public void testSpatialIndexCandidates() {
+        Set<AbstractFeature> candidates = cache.getAbstractFeatures(new Envelope(9.5, 12.5, 9.5, 12.5));
+        assertThat(candidates.size(), is(3));
+        assertThat(cache.getAbstractFeatures(new Envelope(200, 300, 200, 300)).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testSnapshotIsReplacedOnUpdate() throws OwsExceptionReport {
+        InMemoryCacheImpl.Snapshot snapshot = cache.getSnapshot();
+        assertThat(cache.getAbstractFeatures() == snapshot.getAbstractFeatures(), is(true));
+        cache.setAbstractFeatures(Sets.<AbstractFeature> newHashSet(feature("other", 0, 0)));
+        assertThat(snapshot.getAbstractFeatures().size(), is(100));
+        assertThat(cache.getSnapshot().getAbstractFeatures().size(), is(1));
+        assertThat(cache.getAbstractFeatures(new Envelope(9.5, 12.5, 9.5, 12.5)).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testPartialUntilFeaturesReplaced() throws OwsExceptionReport {
+        cache.setPartial(true);
+        cache.updateAbstractFeatures(Lists.<AbstractFeature> newArrayList(feature("new", 0, 0)),
+                Collections.<String> emptyList());
+        assertThat(cache.isPartial(), is(true));
+        cache.setAbstractFeatures(Sets.<AbstractFeature> newHashSet(feature("other", 0, 0)));
+        assertThat(cache.isPartial(), is(false));
+    }
+
+    @Test
+    public void testIdentifierIndex() {
+        assertThat(cache.getAbstractFeaturesByIdentifier(Lists.newArrayList("feature1", "feature7", "unknown")).size(),
+                is(2));
+        assertThat(cache.getAbstractFeaturesByIdentifier(Lists.newArrayList("sf_feature1")).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testResourceIdIndex() {
+        Set<AbstractFeature> features = cache.getAbstractFeaturesByResourceId(Lists.newArrayList("sf_feature1", "feature2"));
+        assertThat(features.size(), is(2));
+        for (AbstractFeature feature : features) {
+            assertThat(feature.getIdentifier().equals("feature1") || feature.getIdentifier().equals("feature2"), is(true));
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdate() throws OwsExceptionReport {
+        cache.updateAbstractFeatures(Lists.<AbstractFeature> newArrayList(feature("feature1", 50, 50), feature("new", 0, 0)),
+                Lists.newArrayList("feature2", "unknown"));
+        assertThat(cache.getAbstractFeatures().size(), is(100));
+        assertThat(cache.getSnapshot().getIdentifiers().contains("feature2"), is(false));
+        assertThat(cache.getAbstractFeaturesByIdentifier(Lists.newArrayList("new")).size(), is(1));
+        assertThat(cache.getAbstractFeatures(new Envelope(49.5, 50.5, 49.5, 50.5)).size(), is(2));
+    }
+
+    @Test
+    public void testEncodedFeatures() throws OwsExceptionReport {
+        InMemoryCacheImpl.Snapshot snapshot = cache.getSnapshot();
+        AbstractFeature feature1 = cache.getAbstractFeaturesByIdentifier(Lists.newArrayList("feature1")).iterator().next();
+        AbstractFeature feature2 = cache.getAbstractFeaturesByIdentifier(Lists.newArrayList("feature2")).iterator().next();
+        Map<String, XmlObject> encoded = Maps.newHashMap();
+        encoded.put("feature1", XmlObject.Factory.newInstance());
+        encoded.put("feature2", XmlObject.Factory.newInstance());
+        assertThat(cache.setEncodedFeatures(snapshot, Collections.singletonMap(TYPE, encoded)), is(true));
+        assertThat(cache.getSnapshot().getEncodedFeature(TYPE, feature1) != null, is(true));
+        // encodings of an outdated snapshot are discarded
+        assertThat(cache.setEncodedFeatures(snapshot, Collections.singletonMap(TYPE, encoded)), is(false));
+        // replaced features lose their encoding, kept features keep it
+        cache.updateAbstractFeatures(Lists.<AbstractFeature> newArrayList(feature("feature2", 2, 2)),
+                Collections.<String> emptyList());
+        assertThat(cache.getSnapshot().getEncodedFeature(TYPE, feature1) != null, is(true));
+        assertThat(cache.getSnapshot().getEncodedFeature(TYPE, feature2) == null, is(true));
+    }
+
+    @Test
+    public void testConvertedFeatures() throws OwsExceptionReport {
+        InMemoryCacheImpl.Snapshot snapshot = cache.getSnapshot();
+        AbstractFeature feature1 = cache.getAbstractFeaturesByIdentifier(Lists.newArrayList("feature1")).iterator().next();
+        Map<String, AbstractFeature> converted = Maps.newHashMap();
+        converted.put("feature1", feature("converted1", 1, 1));
+        converted.put("unknown", feature("converted2", 2, 2));
+        assertThat(cache.setConvertedFeatures(snapshot, Collections.singletonMap(TYPE, converted)), is(true));
+        assertThat(cache.getSnapshot().getConvertedFeature(TYPE, feature1).getIdentifier(), is("converted1"));
+        // a feature with the same identifier is not the cached feature
+        assertThat(cache.getSnapshot().getConvertedFeature(TYPE, feature("feature1", 1, 1)) == null, is(true));
+        cache.updateAbstractFeatures(Collections.<AbstractFeature> emptyList(), Lists.newArrayList("feature2"));
+        assertThat(cache.getSnapshot().getConvertedFeature(TYPE, feature1).getIdentifier(), is("converted1"));
+        cache.updateAbstractFeatures(Lists.<AbstractFeature> newArrayList(feature("feature1", 1, 1)),
+                Collections.<String> emptyList());
+        assertThat(cache.getSnapshot().getConvertedFeature(TYPE, feature1) == null, is(true));
+    }
+
+    static SamplingFeature feature(String identifier, double x, double y) throws OwsExceptionReport {
+        SamplingFeature feature = new SamplingFeature(new CodeWithAuthority(identifier), "sf_" + identifier);
+        feature.setGeometry(GEOMETRY_FACTORY.createPoint(new Coordinate(x, y)));
+        return feature;
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.util.http.MediaTypes;
+import org.n52.wfs.exception.wfs.concrete.UpstreamCapacityExceededException;
+
+public class AsyncHttpClientHandlerTest {
+
+    private static final String GET_OBSERVATION_REQUEST =
+            "<sos:GetObservation xmlns:sos=\"http://www.opengis.net/sos/2.0\" service=\"SOS\" version=\"2.0.0\"/>";
+
+    private StubSos sos;
+
+    private HttpClientHandler httpClientHandler;
+
+    private AsyncHttpClientHandler asyncHttpClientHandler;
+
+    @Before
+    public void setUp() throws IOException {
+        sos = new StubSos();
+        httpClientHandler = new HttpClientHandler();
+        httpClientHandler.setUrl(sos.getUrl());
+        httpClientHandler.init();
+        asyncHttpClientHandler = createAsyncHttpClientHandler(4, 10);
+    }
+
+    @After
+    public void tearDown() {
+        asyncHttpClientHandler.destroy();
+        httpClientHandler.destroy();
+        sos.close();
+    }
+
+    private AsyncHttpClientHandler createAsyncHttpClientHandler(int threads, int maxQueuedCalls) {
+        AsyncHttpClientHandler handler = new AsyncHttpClientHandler();
+        handler.setHttpClientHandler(httpClientHandler);
+        handler.setThreads(threads);
+        handler.setMaxQueuedCalls(maxQueuedCalls);
+        handler.init();
+        return handler;
+    }
+
+    @Test
+    public void testCallerIsNotBlocked() throws InterruptedException, ExecutionException {
+        sos.setLatency(500);
+        CompletableFuture<String> response =
+                asyncHttpClientHandler.doPostAsync(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML);
+        assertThat(response.isDone(), is(false));
+        assertThat(response.get().isEmpty(), is(false));
+        assertThat(sos.getRequestCount(StubSos.GET_OBSERVATION), is(1L));
+    }
+
+    @Test
+    public void testRetriesUnavailableSos() throws InterruptedException {
+        sos.setStatusCode(503);
+        try {
+            asyncHttpClientHandler.doPostAsync(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML).get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(OwsExceptionReport.class));
+        }
+        assertThat(sos.getRequestCount(StubSos.GET_OBSERVATION) > 1, is(true));
+    }
+
+    @Test
+    public void testRejectsCallsAboveQueue() throws InterruptedException, ExecutionException {
+        asyncHttpClientHandler.destroy();
+        asyncHttpClientHandler = createAsyncHttpClientHandler(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> running = asyncHttpClientHandler.submit(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "running";
+        });
+        assertThat(started.await(1, TimeUnit.SECONDS), is(true));
+        CompletableFuture<String> queued = asyncHttpClientHandler.submit(() -> "queued");
+        CompletableFuture<String> rejected = asyncHttpClientHandler.submit(() -> "rejected");
+        assertThat(rejected.isCompletedExceptionally(), is(true));
+        try {
+            rejected.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(UpstreamCapacityExceededException.class));
+        }
+        release.countDown();
+        assertThat(running.get(), is("running"));
+        assertThat(queued.get(), is("queued"));
+    }
+
+    @Test
+    public void testCancelledCallIsNotExecuted() throws InterruptedException, ExecutionException {
+        asyncHttpClientHandler.destroy();
+        asyncHttpClientHandler = createAsyncHttpClientHandler(1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> running = asyncHttpClientHandler.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "running";
+        });
+        CompletableFuture<String> cancelled = asyncHttpClientHandler
+                .doPostAsync(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML);
+        cancelled.cancel(false);
+        release.countDown();
+        assertThat(running.get(), is("running"));
+        // the queued call runs after the first one, wait until it was skipped
+        assertThat(asyncHttpClientHandler.submit(() -> "next").get(), is("next"));
+        assertThat(sos.getRequestCount(StubSos.GET_OBSERVATION), is(0L));
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.n52.iceland.exception.ows.NoApplicableCodeException;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+
+import com.google.common.io.ByteStreams;
+
+public class ContentHashingResponseHandlerTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private ContentHashingResponseHandler<String> handler;
+
+    @Before
+    public void setUp() {
+        handler = new ContentHashingResponseHandler<>(content -> {
+            calls.incrementAndGet();
+            return new String(ByteStreams.toByteArray(content), StandardCharsets.UTF_8);
+        });
+    }
+
+    @Test
+    public void testUnchangedContentIsNotHandledAgain() throws OwsExceptionReport, IOException {
+        String result = handler.handle(content("<a/>"));
+        assertThat(result, is("<a/>"));
+        assertThat(handler.handle(content("<a/>")), is(sameInstance(result)));
+        assertThat(calls.get(), is(1));
+    }
+
+    @Test
+    public void testChangedContentIsHandled() throws OwsExceptionReport, IOException {
+        handler.handle(content("<a/>"));
+        assertThat(handler.handle(content("<b/>")), is("<b/>"));
+        assertThat(handler.handle(content("<a/>")), is("<a/>"));
+        assertThat(calls.get(), is(3));
+    }
+
+    @Test
+    public void testResetForgetsLastContent() throws OwsExceptionReport, IOException {
+        handler.handle(content("<a/>"));
+        handler.reset();
+        handler.handle(content("<a/>"));
+        assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void testFailedContentIsHandledAgain() throws OwsExceptionReport, IOException {
+        ContentHashingResponseHandler<String> failing = new ContentHashingResponseHandler<>(content -> {
+            calls.incrementAndGet();
+            throw new NoApplicableCodeException().withMessage("error");
+        });
+        for (int i = 0; i < 2; i++) {
+            try {
+                failing.handle(content("<a/>"));
+                fail("expected OwsExceptionReport");
+            } catch (OwsExceptionReport e) {
+                // expected
+            }
+        }
+        assertThat(calls.get(), is(2));
+    }
+
+    private static InputStream content(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.n52.iceland.ogc.filter.FilterConstants.TimeOperator;
+import org.n52.iceland.ogc.gml.time.TimePeriod;
+import org.n52.sos.ogc.filter.TemporalFilter;
+import org.n52.sos.ogc.om.OmObservation;
+import org.n52.sos.ogc.om.SingleObservationValue;
+import org.n52.sos.ogc.om.values.QuantityValue;
+import org.n52.sos.request.GetObservationRequest;
+import org.n52.sos.response.GetObservationResponse;
+
+import com.google.common.collect.Lists;
+
+public class GetObservationRequestSplitterTest {
+
+    private static final DateTime START = new DateTime(2015, 1, 1, 0, 0, DateTimeZone.UTC);
+
+    private final GetObservationRequestSplitter splitter = new GetObservationRequestSplitter();
+
+    @Test
+    public void testNotSplitByDefault() {
+        assertThat(splitter.split(request(START, START.plusDays(10))).size(), is(1));
+    }
+
+    @Test
+    public void testSplitByDuration() {
+        splitter.setChunkDuration(24 * 60);
+        List<GetObservationRequest> requests = splitter.split(request(START, START.plusDays(3)));
+        assertThat(requests.size(), is(3));
+        assertThat(getPeriod(requests.get(0)).getStart(), is(START));
+        assertThat(getPeriod(requests.get(0)).getEnd(), is(START.plusDays(1)));
+        assertThat(getPeriod(requests.get(1)).getStart(), is(START.plusDays(1).minusMillis(1)));
+        assertThat(getPeriod(requests.get(2)).getEnd(), is(START.plusDays(3)));
+        assertThat(requests.get(2).getProcedures(), is(requests.get(0).getProcedures()));
+    }
+
+    @Test
+    public void testSplitByCount() {
+        splitter.setChunkCount(4);
+        assertThat(splitter.split(request(START, START.plusDays(1))).size(), is(4));
+        assertThat(splitter.split(request(START, START.plusMinutes(2))).size(), is(2));
+    }
+
+    @Test
+    public void testMergeKeepsObservationsCrossingChunks() {
+        splitter.setChunkDuration(24 * 60);
+        splitter.setMaxObservationDuration(60);
+        List<GetObservationRequest> requests = splitter.split(request(START, START.plusDays(2)));
+        assertThat(requests.size(), is(2));
+        assertThat(getPeriod(requests.get(0)).getEnd(), is(START.plusDays(1).plusHours(1)));
+        // crosses the end of the first chunk, returned by the first request
+        OmObservation crossing = observation(START.plusDays(1).minusMinutes(30), START.plusDays(1).plusMinutes(10));
+        // returned by both requests
+        OmObservation overlap = observation(START.plusDays(1).plusMinutes(10), START.plusDays(1).plusMinutes(20));
+        OmObservation second = observation(START.plusDays(1).plusHours(2), START.plusDays(1).plusHours(3));
+        List<OmObservation> observations = splitter.merge(requests,
+                Lists.newArrayList(response(crossing, overlap), response(overlap, second)));
+        assertThat(observations, is((List<OmObservation>) Lists.newArrayList(crossing, overlap, second)));
+    }
+
+    @Test
+    public void testMergeKeepsObservationsOnChunkBoundaries() {
+        splitter.setChunkDuration(24 * 60);
+        GetObservationRequest request = request(START, START.plusDays(2));
+        List<GetObservationRequest> requests = splitter.split(request);
+        assertThat(requests.size(), is(2));
+        List<OmObservation> stored = Lists.newArrayList(
+                observation(START.plusDays(1).minusMillis(2), START.plusDays(1).minusMillis(2)),
+                observation(START.plusDays(1).minusMillis(1), START.plusDays(1).minusMillis(1)),
+                observation(START.plusDays(1), START.plusDays(1)),
+                observation(START.plusDays(1).plusMillis(1), START.plusDays(1).plusMillis(1)));
+        List<GetObservationResponse> responses = Lists.newArrayList();
+        for (GetObservationRequest chunk : requests) {
+            responses.add(query(chunk, stored));
+        }
+        assertThat(splitter.merge(requests, responses), is(query(request, stored).getObservationCollection()));
+        assertThat(splitter.merge(requests, responses), is(stored));
+    }
+
+    @Test
+    public void testSplitIdentifiers() {
+        splitter.setBatchSize(2);
+        GetObservationRequest request = request(START, START.plusDays(1));
+        request.setProcedures(Lists.newArrayList("a", "b", "a", "c", "d", "e"));
+        request.setObservedProperties(Lists.newArrayList("property"));
+        List<GetObservationRequest> requests = splitter.split(request);
+        assertThat(requests.size(), is(3));
+        assertThat(requests.get(0).getProcedures(), is((List<String>) Lists.newArrayList("a", "b")));
+        assertThat(requests.get(1).getProcedures(), is((List<String>) Lists.newArrayList("c", "d")));
+        assertThat(requests.get(2).getProcedures(), is((List<String>) Lists.newArrayList("e")));
+        assertThat(requests.get(2).getObservedProperties(), is((List<String>) Lists.newArrayList("property")));
+    }
+
+    private GetObservationRequest request(DateTime start, DateTime end) {
+        GetObservationRequest request = new GetObservationRequest();
+        request.setProcedures(Lists.newArrayList("procedure"));
+        request.setTemporalFilters(Lists.newArrayList(new TemporalFilter(TimeOperator.TM_During,
+                new TimePeriod(start, end), "om:phenomenonTime")));
+        return request;
+    }
+
+    private OmObservation observation(DateTime start, DateTime end) {
+        OmObservation observation = new OmObservation();
+        observation.setValue(new SingleObservationValue<>(new TimePeriod(start, end), new QuantityValue(1.0)));
+        return observation;
+    }
+
+    /**
+     * Evaluate the <code>During</code> filter like the SOS, excluding the
+     * bounds of the period
+     */
+    private GetObservationResponse query(GetObservationRequest request, List<OmObservation> stored) {
+        TimePeriod period = getPeriod(request);
+        List<OmObservation> observations = Lists.newArrayList();
+        for (OmObservation observation : stored) {
+            long[] time = ObservationCache.getTime(observation);
+            if (time[0] > period.getStart().getMillis() && time[1] < period.getEnd().getMillis()) {
+                observations.add(observation);
+            }
+        }
+        GetObservationResponse response = new GetObservationResponse();
+        response.setObservationCollection(observations);
+        return response;
+    }
+
+    private GetObservationResponse response(OmObservation... observations) {
+        GetObservationResponse response = new GetObservationResponse();
+        response.setObservationCollection(Lists.newArrayList(observations));
+        return response;
+    }
+
+    private TimePeriod getPeriod(GetObservationRequest request) {
+        return (TimePeriod) request.getTemporalFilters().get(0).getTime();
+    }
+
+}
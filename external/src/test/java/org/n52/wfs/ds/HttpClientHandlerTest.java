@@ -28,35 +28,186 @@
  */
 package org.n52.wfs.ds;
 
-import java.net.URI;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.xmlbeans.XmlObject;
 import org.n52.iceland.exception.ows.OwsExceptionReport;
 import org.n52.iceland.ogc.ows.OWSConstants;
 import org.n52.iceland.ogc.sos.SosConstants;
+import org.n52.iceland.util.http.MediaTypes;
 import org.n52.sos.util.XmlHelper;
+import org.n52.wfs.ds.upstream.CircuitBreaker;
+import org.n52.wfs.ds.upstream.HedgingPolicy;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 
 public class HttpClientHandlerTest {
-    
-//    @Test
-    public void test() throws OwsExceptionReport, URISyntaxException{
-        HttpClientHandler httpClientHandler = new HttpClientHandler();
-        httpClientHandler.setUrl(new URI("http://iddss-sensor.cdmps.org.au:8080/52n-sos-webapp/service"));
+
+    private static final String GET_OBSERVATION_REQUEST =
+            "<sos:GetObservation xmlns:sos=\"http://www.opengis.net/sos/2.0\" service=\"SOS\" version=\"2.0.0\"/>";
+
+    private StubSos sos;
+
+    private HttpClientHandler httpClientHandler;
+
+    @Before
+    public void setUp() throws IOException {
+        sos = new StubSos();
+        httpClientHandler = new HttpClientHandler();
+        httpClientHandler.setUrl(sos.getUrl());
         httpClientHandler.init();
-        
+    }
+
+    @After
+    public void tearDown() {
+        httpClientHandler.destroy();
+        sos.close();
+    }
+
+    private static Map<String, List<String>> getCapabilitiesParameter() {
         Map<String, List<String>> parameter = Maps.newHashMap();
         parameter.put(OWSConstants.GetCapabilitiesParams.service.name(), Lists.newArrayList(SosConstants.SOS));
         parameter.put(OWSConstants.GetCapabilitiesParams.request.name(), Lists.newArrayList(OWSConstants.Operations.GetCapabilities.name()));
         parameter.put(OWSConstants.GetCapabilitiesParams.Sections.name(), Lists.newArrayList(SosConstants.CapabilitiesSections.OperationsMetadata.name()));
+        return parameter;
+    }
+
+    private HttpClientHandler createHttpClientHandler(int connectionTimeToLive, int idleConnectionTimeout) {
+        httpClientHandler.destroy();
+        httpClientHandler = new HttpClientHandler();
+        httpClientHandler.setUrl(sos.getUrl());
+        httpClientHandler.setConnectionTimeToLive(connectionTimeToLive);
+        httpClientHandler.setIdleConnectionTimeout(idleConnectionTimeout);
+        httpClientHandler.init();
+        return httpClientHandler;
+    }
+
+    @Test
+    public void test() throws OwsExceptionReport, URISyntaxException{
+        XmlObject xml = XmlHelper.parseXmlString(httpClientHandler.doGet(getCapabilitiesParameter()));
+        assertThat(xml.getDomNode().getFirstChild().getLocalName(), is("Capabilities"));
+        assertThat(sos.getRequestCount(StubSos.GET_CAPABILITIES), is(1L));
+    }
+
+    @Test
+    public void testRetriesUnavailableSos() throws OwsExceptionReport {
+        sos.setStatusCode(503);
+        try {
+            httpClientHandler.doPost(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML);
+            fail("expected OwsExceptionReport");
+        } catch (OwsExceptionReport e) {
+            // expected
+        }
+        assertThat(sos.getRequestCount(StubSos.GET_OBSERVATION) > 1, is(true));
+    }
+
+    @Test
+    public void testReusesPooledConnection() throws OwsExceptionReport {
+        httpClientHandler.doPost(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML);
+        httpClientHandler.doPost(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML);
+        assertThat(sos.getConnectionCount(), is(1));
+        assertThat(httpClientHandler.getPoolStats().getAvailable(), is(1));
+    }
+
+    @Test
+    public void testExpiredConnectionsAreNotReused() throws OwsExceptionReport, InterruptedException {
+        // the idle evictor does not run during the test, the expired
+        // connection is discarded when it is leased again
+        HttpClientHandler handler = createHttpClientHandler(100, 60000);
+        handler.doPost(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML);
+        Thread.sleep(300);
+        handler.doPost(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML);
+        assertThat(sos.getConnectionCount(), is(2));
+        assertThat(sos.getRequestCount(StubSos.GET_OBSERVATION), is(2L));
+    }
+
+    @Test
+    public void testIdleConnectionsAreEvicted() throws OwsExceptionReport, InterruptedException {
+        HttpClientHandler handler = createHttpClientHandler(60000, 100);
+        handler.doPost(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML);
+        assertThat(handler.getPoolStats().getAvailable(), is(1));
+        // the evictor checks the pool once per idle timeout
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handler.getPoolStats().getAvailable() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(handler.getPoolStats().getAvailable(), is(0));
+        handler.doPost(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML);
+        assertThat(sos.getConnectionCount(), is(2));
+    }
+
+    @Test
+    public void testConditionalGetIsNotModified() throws OwsExceptionReport {
+        sos.setEntityTag("\"1\"");
+        ResponseValidators validators = new ResponseValidators();
+        byte[] capabilities = httpClientHandler.doGet(getCapabilitiesParameter(), validators, ByteStreams::toByteArray);
+        assertThat(capabilities.length > 0, is(true));
+        assertThat(validators.getEntityTag(), is("\"1\""));
+        assertThat(httpClientHandler.doGet(getCapabilitiesParameter(), validators, ByteStreams::toByteArray),
+                is(nullValue()));
+        assertThat(validators.getEntityTag(), is("\"1\""));
+        // the pooled connection is reused after the empty response
+        assertThat(sos.getConnectionCount(), is(1));
+        sos.setEntityTag("\"2\"");
+        assertThat(httpClientHandler.doGet(getCapabilitiesParameter(), validators, ByteStreams::toByteArray),
+                is(capabilities));
+        assertThat(validators.getEntityTag(), is("\"2\""));
+        assertThat(sos.getRequestCount(StubSos.GET_CAPABILITIES), is(3L));
+    }
+
+    @Test
+    public void testUnchangedCapabilitiesAreNotHandledAgain() throws OwsExceptionReport {
+        AtomicInteger calls = new AtomicInteger();
+        ContentHashingResponseHandler<byte[]> handler = new ContentHashingResponseHandler<>(content -> {
+            calls.incrementAndGet();
+            return ByteStreams.toByteArray(content);
+        });
+        // the SOS sends no validators, every request returns the content
+        ResponseValidators validators = new ResponseValidators();
+        byte[] capabilities = httpClientHandler.doGet(getCapabilitiesParameter(), validators, handler);
+        assertThat(httpClientHandler.doGet(getCapabilitiesParameter(), validators, handler),
+                is(sameInstance(capabilities)));
+        assertThat(validators.getEntityTag(), is(nullValue()));
+        assertThat(sos.getRequestCount(StubSos.GET_CAPABILITIES), is(2L));
+        assertThat(calls.get(), is(1));
+    }
 
-        XmlObject xml = XmlHelper.parseXmlString(httpClientHandler.doGet(parameter));
+    @Test
+    public void testHedgeBudgetIsKeptIfBreakerDenies() throws OwsExceptionReport {
+        AtomicInteger permissions = new AtomicInteger();
+        httpClientHandler.setCircuitBreaker(new CircuitBreaker() {
+            @Override
+            public synchronized boolean tryAcquirePermission() {
+                // permit the primary request only
+                return permissions.incrementAndGet() == 1;
+            }
+        });
+        HedgingPolicy hedgingPolicy = new HedgingPolicy();
+        hedgingPolicy.setEnabled(true);
+        hedgingPolicy.setDelay(50);
+        hedgingPolicy.setBudgetPercent(100);
+        httpClientHandler.setHedgingPolicy(hedgingPolicy);
+        sos.setLatency(300);
+        httpClientHandler.doPost(GET_OBSERVATION_REQUEST, MediaTypes.APPLICATION_XML);
+        assertThat(permissions.get(), is(2));
+        assertThat(sos.getRequestCount(StubSos.GET_OBSERVATION), is(1L));
+        assertThat(hedgingPolicy.getHedgedRequests(), is(0L));
+        assertThat(hedgingPolicy.tryAcquireHedge(), is(true));
     }
 
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.n52.iceland.util.http.MediaTypes;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Load driver that executes a request concurrently with a fixed number of
+ * threads and reports the throughput and latency percentiles.
+ *
+ * Run {@link #main(String[])} to load a deployed WFS proxy with KVP
+ * GetFeature requests, e.g. with the {@link StubSos} configured as SOS:
+ *
+ * <pre>
+ * -Dwfs.url=http://localhost:8080/wfs-proxy/service -Dload.threads=20
+ *   -Dload.requests=10000 -Dload.typeNames=om:Observation,sams:SF_SpatialSamplingFeature
+ * </pre>
+ *
+ * With <code>-Dload.stub=true</code> the {@link HttpClientHandler} is loaded
+ * directly against a {@link StubSos}, the baseline of the proxy to SOS
+ * throughput:
+ *
+ * <pre>
+ * -Dload.stub=true -Dload.threads=10 -Dload.requests=500 -Dload.latency=5
+ * </pre>
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+public class LoadDriver {
+
+    private final int threads;
+
+    private final int requests;
+
+    private final int warmupRequests;
+
+    public LoadDriver(int threads, int requests, int warmupRequests) {
+        this.threads = threads;
+        this.requests = requests;
+        this.warmupRequests = warmupRequests;
+    }
+
+    /**
+     * Execute the warm up and the measured requests
+     *
+     * @param request
+     *            the request to execute, failures are counted as errors
+     * @return the result of the measured requests
+     * @throws InterruptedException
+     *             If the thread was interrupted while waiting
+     */
+    public Result run(Callable<?> request) throws InterruptedException {
+        execute(request, warmupRequests, new long[warmupRequests], new AtomicLong());
+        long[] latencies = new long[requests];
+        AtomicLong errors = new AtomicLong();
+        long start = System.nanoTime();
+        execute(request, requests, latencies, errors);
+        long duration = System.nanoTime() - start;
+        return new Result(latencies, errors.get(), duration);
+    }
+
+    private void execute(Callable<?> request, int count, long[] latencies, AtomicLong errors)
+            throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicLong next = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                try {
+                    int index;
+                    while ((index = (int) next.getAndIncrement()) < count) {
+                        long start = System.nanoTime();
+                        try {
+                            request.call();
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        latencies[index] = System.nanoTime() - start;
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        executor.shutdown();
+    }
+
+    /**
+     * Result of a load run
+     */
+    public static class Result {
+
+        private final long[] latencies;
+
+        private final long errors;
+
+        private final long duration;
+
+        Result(long[] latencies, long errors, long duration) {
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+            this.errors = errors;
+            this.duration = duration;
+        }
+
+        public int getRequests() {
+            return latencies.length;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the requests per second
+         */
+        public double getThroughput() {
+            return latencies.length / (duration / 1e9);
+        }
+
+        /**
+         * @param percentile
+         *            the percentile (0-100)
+         * @return the latency percentile in milliseconds
+         */
+        public double getLatency(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+            return latencies[Math.min(latencies.length - 1, Math.max(0, index))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %d errors, %.1f req/s, latency p50 %.1f ms, p95 %.1f ms, "
+                    + "p99 %.1f ms, max %.1f ms", getRequests(), getErrors(), getThroughput(), getLatency(50),
+                    getLatency(95), getLatency(99), getLatency(100));
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String url = System.getProperty("wfs.url", "http://localhost:8080/wfs-proxy/service");
+        int threads = Integer.getInteger("load.threads", 20);
+        int requests = Integer.getInteger("load.requests", 10000);
+        int warmup = Integer.getInteger("load.warmup", 1000);
+        if (Boolean.getBoolean("load.stub")) {
+            runAgainstStub(threads, requests, warmup);
+            return;
+        }
+        List<String> typeNames =
+                Lists.newArrayList(System.getProperty("load.typeNames", "sams:SF_SpatialSamplingFeature").split(","));
+        try (CloseableHttpClient client = HttpClients.custom().setMaxConnTotal(threads)
+                .setMaxConnPerRoute(threads).build()) {
+            AtomicLong counter = new AtomicLong();
+            Result result = new LoadDriver(threads, requests, warmup).run(() -> {
+                String typeName = typeNames.get((int) (counter.getAndIncrement() % typeNames.size()));
+                HttpGet get = new HttpGet(url + "?service=WFS&version=2.0.0&request=GetFeature&typeNames="
+                        + typeName);
+                try (CloseableHttpResponse response = client.execute(get)) {
+                    EntityUtils.consume(response.getEntity());
+                    if (response.getStatusLine().getStatusCode() != 200) {
+                        throw new IOException("HTTP status " + response.getStatusLine().getStatusCode());
+                    }
+                }
+                return null;
+            });
+            System.out.println(url + ": " + result);
+        }
+    }
+
+    private static void runAgainstStub(int threads, int requests, int warmup) throws IOException,
+            InterruptedException {
+        try (StubSos sos = new StubSos()) {
+            sos.setLatency(Integer.getInteger("load.latency", 5));
+            sos.setObservationCount(Integer.getInteger("load.observations", 500));
+            HttpClientHandler httpClientHandler = new HttpClientHandler();
+            httpClientHandler.setUrl(sos.getUrl());
+            httpClientHandler.init();
+            try {
+                Result result = new LoadDriver(threads, requests, warmup).run(() -> httpClientHandler.doPost(
+                        "<sos:GetObservation xmlns:sos=\"http://www.opengis.net/sos/2.0\" service=\"SOS\" "
+                                + "version=\"2.0.0\"/>", MediaTypes.APPLICATION_XML));
+                System.out.println("HttpClientHandler against stub SOS: " + result);
+            } finally {
+                httpClientHandler.destroy();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.n52.iceland.exception.ows.NoApplicableCodeException;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.filter.FilterConstants.TimeOperator;
+import org.n52.iceland.ogc.gml.time.TimeInstant;
+import org.n52.iceland.ogc.gml.time.TimePeriod;
+import org.n52.sos.ogc.filter.TemporalFilter;
+import org.n52.sos.ogc.om.OmObservation;
+import org.n52.sos.ogc.om.SingleObservationValue;
+import org.n52.sos.ogc.om.values.QuantityValue;
+import org.n52.sos.request.GetObservationRequest;
+import org.n52.sos.response.GetObservationResponse;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.google.common.collect.Lists;
+
+public class ObservationCacheTest {
+
+    private static final DateTime START = new DateTime(2015, 1, 1, 0, 0, DateTimeZone.UTC);
+
+    private final ObservationCache cache = new ObservationCache();
+
+    private final List<TimePeriod> loaded = Lists.newArrayList();
+
+    @Before
+    public void setUp() {
+        cache.setEnabled(true);
+    }
+
+    @Test
+    public void testQueriesOnlyGaps() throws OwsExceptionReport {
+        assertThat(cache.getObservations(request(0, 10), this::load, this::decode).getObservationCollection().size(), is(9));
+        assertThat(loaded.size(), is(1));
+        GetObservationResponse response = cache.getObservations(request(5, 15), this::load, this::decode);
+        assertThat(response.getObservationCollection().size(), is(9));
+        assertThat(loaded.size(), is(2));
+        assertThat(loaded.get(1).getStart(), is(START.plusHours(10).minusMillis(1)));
+        assertThat(loaded.get(1).getEnd(), is(START.plusHours(15)));
+        assertThat(getTime(response.getObservationCollection().get(0)), is(START.plusHours(6)));
+        assertThat(getTime(response.getObservationCollection().get(8)), is(START.plusHours(14)));
+        cache.getObservations(request(2, 12), this::load, this::decode);
+        assertThat(loaded.size(), is(2));
+        assertThat(cache.getSize(), is(14));
+    }
+
+    @Test
+    public void testReturnsObservationsAtBounds() throws OwsExceptionReport {
+        // the SOS does not return the observations at 00:00 and 10:00
+        cache.getObservations(request(0, 10), this::load, this::decode);
+        assertThat(loaded.get(0).getStart(), is(START));
+        assertThat(loaded.get(0).getEnd(), is(START.plusHours(10)));
+        GetObservationResponse response = cache.getObservations(request(9, 11), this::load, this::decode);
+        assertThat(response.getObservationCollection().size(), is(1));
+        assertThat(getTime(response.getObservationCollection().get(0)), is(START.plusHours(10)));
+        // a cache hit returns the same observations as the SOS
+        response = cache.getObservations(request(1, 9), this::load, this::decode);
+        assertThat(loaded.size(), is(2));
+        assertThat(response.getObservationCollection().size(), is(7));
+        assertThat(getTime(response.getObservationCollection().get(0)), is(START.plusHours(2)));
+    }
+
+    @Test
+    public void testKeepsObservationsCrossingGaps() throws OwsExceptionReport {
+        cache.setMaxObservationDuration(60);
+        assertThat(cache.getObservations(request(0, 10), this::loadPeriods, this::decode).getObservationCollection().size(),
+                is(9));
+        assertThat(loaded.get(0).getEnd(), is(START.plusHours(11)));
+        assertThat(cache.getObservations(request(12, 14), this::loadPeriods, this::decode).getObservationCollection().size(),
+                is(1));
+        // the observation from 12:00 to 12:30 crosses the end of the gap
+        GetObservationResponse response = cache.getObservations(request(0, 14), this::loadPeriods, this::decode);
+        assertThat(response.getObservationCollection().size(), is(13));
+        assertThat(loaded.size(), is(3));
+        assertThat(loaded.get(2).getStart(), is(START.plusHours(10).minusMillis(1)));
+        assertThat(loaded.get(2).getEnd(), is(START.plusHours(13).plusMillis(1)));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedSeries() throws OwsExceptionReport {
+        cache.setMaxObservations(15);
+        cache.getObservations(request("a", 0, 10), this::load, this::decode);
+        cache.getObservations(request("b", 0, 10), this::load, this::decode);
+        assertThat(cache.getEvictions(), is(1L));
+        assertThat(cache.getSize(), is(9));
+    }
+
+    @Test
+    public void testEvictsSeriesAboveMaximum() throws OwsExceptionReport {
+        cache.setMaxSeries(1);
+        cache.getObservations(request("a", 0, 10), this::load, this::decode);
+        cache.getObservations(request("b", 0, 10), this::load, this::decode);
+        assertThat(cache.getSeriesCount(), is(1));
+        assertThat(cache.getEvictions(), is(1L));
+    }
+
+    @Test
+    public void testRemovesExpiredSeries() throws OwsExceptionReport {
+        cache.setTimeToLive(0);
+        cache.getObservations(request("a", 0, 10), this::load, this::decode);
+        cache.getObservations(request("b", 0, 10), this::load, this::decode);
+        assertThat(cache.getSeriesCount(), is(1));
+        assertThat(cache.getSize(), is(9));
+        assertThat(cache.getEvictions(), is(0L));
+    }
+
+    @Test
+    public void testDoesNotStoreEmptySeries() throws OwsExceptionReport {
+        assertThat(cache.getObservations(request(5, 5), this::load, this::decode).getObservationCollection()
+                .size(), is(0));
+        assertThat(cache.getSeriesCount(), is(0));
+        assertThat(loaded.size(), is(0));
+    }
+
+    @Test
+    public void testDecodesObservationsPerRequest() throws OwsExceptionReport {
+        OmObservation first = cache.getObservations(request(0, 10), this::load, this::decode)
+                .getObservationCollection().get(0);
+        OmObservation second = cache.getObservations(request(0, 10), this::load, this::decode)
+                .getObservationCollection().get(0);
+        assertThat(loaded.size(), is(1));
+        assertThat(getTime(second), is(getTime(first)));
+        assertThat(second, is(not(sameInstance(first))));
+    }
+
+    @Test
+    public void testSplitsGapRequests() throws OwsExceptionReport {
+        GetObservationRequestSplitter splitter = new GetObservationRequestSplitter();
+        splitter.setChunkDuration(5 * 60);
+        cache.setGetObservationRequestSplitter(splitter);
+        GetObservationResponse response = cache.getObservations(request(0, 10), this::load, this::decode);
+        assertThat(loaded.size(), is(2));
+        assertThat(response.getObservationCollection().size(), is(9));
+        assertThat(getTime(response.getObservationCollection().get(4)), is(START.plusHours(5)));
+        assertThat(cache.getObservations(request(0, 10), this::load, this::decode).getObservationCollection()
+                .size(), is(9));
+    }
+
+    /**
+     * Load hourly observations, the bounds of the During filter are excluded
+     * like by the SOS
+     */
+    private List<XmlObject> load(List<GetObservationRequest> requests) throws OwsExceptionReport {
+        List<XmlObject> responses = Lists.newArrayList();
+        for (GetObservationRequest request : requests) {
+            TimePeriod period = (TimePeriod) request.getTemporalFilters().get(0).getTime();
+            loaded.add(period);
+            StringBuilder builder = new StringBuilder("<observations>");
+            for (DateTime time = START; time.isBefore(period.getEnd()); time = time.plusHours(1)) {
+                if (time.isAfter(period.getStart())) {
+                    builder.append(observation(time, time));
+                }
+            }
+            responses.add(parse(builder.append("</observations>").toString()));
+        }
+        return responses;
+    }
+
+    /**
+     * Load hourly observations with a duration of 30 minutes
+     */
+    private List<XmlObject> loadPeriods(List<GetObservationRequest> requests) throws OwsExceptionReport {
+        List<XmlObject> responses = Lists.newArrayList();
+        for (GetObservationRequest request : requests) {
+            TimePeriod period = (TimePeriod) request.getTemporalFilters().get(0).getTime();
+            loaded.add(period);
+            StringBuilder builder = new StringBuilder("<observations>");
+            for (DateTime time = START; time.plusMinutes(30).isBefore(period.getEnd()); time = time.plusHours(1)) {
+                if (time.isAfter(period.getStart())) {
+                    builder.append(observation(time, time.plusMinutes(30)));
+                }
+            }
+            responses.add(parse(builder.append("</observations>").toString()));
+        }
+        return responses;
+    }
+
+    /**
+     * Decode the observations of a test response, each call creates new
+     * observations
+     */
+    private GetObservationResponse decode(XmlObject xml) {
+        List<OmObservation> observations = Lists.newArrayList();
+        NodeList nodes = ((Document) xml.getDomNode()).getDocumentElement().getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element element = (Element) nodes.item(i);
+            long start = Long.parseLong(element.getAttribute("start"));
+            long end = Long.parseLong(element.getAttribute("end"));
+            OmObservation observation = new OmObservation();
+            if (start == end) {
+                observation.setValue(new SingleObservationValue<>(
+                        new TimeInstant(new DateTime(start, DateTimeZone.UTC)), new QuantityValue(1.0)));
+            } else {
+                observation.setValue(new SingleObservationValue<>(new TimePeriod(
+                        new DateTime(start, DateTimeZone.UTC), new DateTime(end, DateTimeZone.UTC)),
+                        new QuantityValue(1.0)));
+            }
+            observations.add(observation);
+        }
+        GetObservationResponse response = new GetObservationResponse();
+        response.setObservationCollection(observations);
+        return response;
+    }
+
+    private static String observation(DateTime start, DateTime end) {
+        return "<observation start=\"" + start.getMillis() + "\" end=\"" + end.getMillis() + "\"/>";
+    }
+
+    private static XmlObject parse(String xml) throws OwsExceptionReport {
+        try {
+            return XmlObject.Factory.parse(xml);
+        } catch (XmlException e) {
+            throw new NoApplicableCodeException().causedBy(e).withMessage("Error while parsing test response!");
+        }
+    }
+
+    private GetObservationRequest request(int startHour, int endHour) {
+        return request("procedure", startHour, endHour);
+    }
+
+    private GetObservationRequest request(String procedure, int startHour, int endHour) {
+        GetObservationRequest request = new GetObservationRequest();
+        request.setProcedures(Lists.newArrayList(procedure));
+        request.setTemporalFilters(Lists.newArrayList(new TemporalFilter(TimeOperator.TM_During,
+                new TimePeriod(START.plusHours(startHour), START.plusHours(endHour)), "om:phenomenonTime")));
+        return request;
+    }
+
+    private DateTime getTime(OmObservation observation) {
+        return ((TimeInstant) observation.getPhenomenonTime()).getValue();
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+public class ResponseValidatorsTest {
+
+    private static final String ENTITY_TAG = "\"1\"";
+
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    @Test
+    public void testValidatorsAreSentWithNextRequest() {
+        ResponseValidators validators = new ResponseValidators();
+        validators.update(response(HttpStatus.SC_OK, ENTITY_TAG, LAST_MODIFIED));
+        HttpGet request = new HttpGet("http://localhost/sos");
+        validators.addTo(request);
+        assertThat(request.getFirstHeader(HttpHeaders.IF_NONE_MATCH).getValue(), is(ENTITY_TAG));
+        assertThat(request.getFirstHeader(HttpHeaders.IF_MODIFIED_SINCE).getValue(), is(LAST_MODIFIED));
+    }
+
+    @Test
+    public void testNoHeadersWithoutValidators() {
+        ResponseValidators validators = new ResponseValidators();
+        validators.update(response(HttpStatus.SC_OK, null, null));
+        HttpGet request = new HttpGet("http://localhost/sos");
+        validators.addTo(request);
+        assertThat(request.getFirstHeader(HttpHeaders.IF_NONE_MATCH), is(nullValue()));
+        assertThat(request.getFirstHeader(HttpHeaders.IF_MODIFIED_SINCE), is(nullValue()));
+    }
+
+    @Test
+    public void testNotModifiedWithoutValidatorsKeepsValidators() {
+        ResponseValidators validators = new ResponseValidators();
+        validators.update(response(HttpStatus.SC_OK, ENTITY_TAG, null));
+        validators.update(response(HttpStatus.SC_NOT_MODIFIED, null, null));
+        assertThat(validators.getEntityTag(), is(ENTITY_TAG));
+    }
+
+    @Test
+    public void testNewValidatorsReplaceOld() {
+        ResponseValidators validators = new ResponseValidators();
+        validators.update(response(HttpStatus.SC_OK, ENTITY_TAG, LAST_MODIFIED));
+        validators.update(response(HttpStatus.SC_OK, "\"2\"", null));
+        assertThat(validators.getEntityTag(), is("\"2\""));
+        assertThat(validators.getLastModified(), is(nullValue()));
+    }
+
+    @Test
+    public void testReset() {
+        ResponseValidators validators = new ResponseValidators();
+        validators.update(response(HttpStatus.SC_OK, ENTITY_TAG, LAST_MODIFIED));
+        validators.reset();
+        HttpGet request = new HttpGet("http://localhost/sos");
+        validators.addTo(request);
+        assertThat(request.getFirstHeader(HttpHeaders.IF_NONE_MATCH), is(nullValue()));
+        assertThat(request.getFirstHeader(HttpHeaders.IF_MODIFIED_SINCE), is(nullValue()));
+    }
+
+    private static BasicHttpResponse response(int statusCode, String entityTag, String lastModified) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+        if (entityTag != null) {
+            response.addHeader(HttpHeaders.ETAG, entityTag);
+        }
+        if (lastModified != null) {
+            response.addHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        }
+        return response;
+    }
+
+}
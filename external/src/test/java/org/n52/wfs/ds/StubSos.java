@@ -0,0 +1,317 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stub SOS for tests and load measurements. Serves synthetic or
+ * recorded GetCapabilities, GetFeatureOfInterest and GetObservation responses
+ * on localhost with configurable size, latency and status code.
+ *
+ * The operation is detected from the <code>request</code> KVP parameter or the
+ * root element of the POST body.
+ *
+ * @author Carsten Hollmann <c.hollmann@52north.org>
+ *
+ * @since 1.0.0
+ *
+ */
+public class StubSos implements AutoCloseable {
+
+    public static final String GET_CAPABILITIES = "GetCapabilities";
+
+    public static final String GET_FEATURE_OF_INTEREST = "GetFeatureOfInterest";
+
+    public static final String GET_OBSERVATION = "GetObservation";
+
+    private static final String PATH = "/service";
+
+    private final Map<String, byte[]> responses = Maps.newConcurrentMap();
+
+    private final Map<String, AtomicLong> requests = Maps.newConcurrentMap();
+
+    private final Set<InetSocketAddress> clients = Sets.newConcurrentHashSet();
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private volatile long latency;
+
+    private volatile int statusCode = 200;
+
+    private volatile String entityTag;
+
+    public StubSos() throws IOException {
+        this(50);
+    }
+
+    /**
+     * @param threads
+     *            the number of threads serving requests
+     */
+    public StubSos(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(PATH, this::handle);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        setFeatureCount(10);
+        setObservationCount(100);
+        responses.put(GET_CAPABILITIES, capabilities().getBytes(Charsets.UTF_8));
+        server.start();
+    }
+
+    /**
+     * @return the service URL of the stub SOS
+     */
+    public URI getUrl() {
+        try {
+            return new URI("http", null, server.getAddress().getHostString(), server.getAddress().getPort(), PATH,
+                    null, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param latency
+     *            the latency in milliseconds injected before each response
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param statusCode
+     *            the HTTP status code of all responses, e.g. 503 to simulate
+     *            an unavailable SOS
+     */
+    public void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Serve a recorded response for the operation
+     *
+     * @param operation
+     *            the operation name
+     * @param response
+     *            the response document
+     */
+    public void setResponse(String operation, byte[] response) {
+        responses.put(operation, response);
+    }
+
+    /**
+     * @param count
+     *            the number of sampling features in the synthetic
+     *            GetFeatureOfInterest response
+     */
+    public void setFeatureCount(int count) {
+        responses.put(GET_FEATURE_OF_INTEREST, features(count).getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * @param count
+     *            the number of observations in the synthetic GetObservation
+     *            response
+     */
+    public void setObservationCount(int count) {
+        responses.put(GET_OBSERVATION, observations(count).getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * @param operation
+     *            the operation name
+     * @return the number of requests received for the operation
+     */
+    public long getRequestCount(String operation) {
+        AtomicLong count = requests.get(operation);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @param entityTag
+     *            the <code>ETag</code> of the capabilities, requests with a
+     *            matching <code>If-None-Match</code> header are answered with
+     *            <code>304 Not Modified</code>, <code>null</code> to send no
+     *            validators
+     */
+    public void setEntityTag(String entityTag) {
+        this.entityTag = entityTag;
+    }
+
+    /**
+     * @return the number of distinct client connections, i.e. client
+     *         addresses, requests were received from
+     */
+    public int getConnectionCount() {
+        return clients.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            clients.add(exchange.getRemoteAddress());
+            String operation = getOperation(exchange);
+            requests.computeIfAbsent(String.valueOf(operation), key -> new AtomicLong()).incrementAndGet();
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            byte[] response = operation != null ? responses.get(operation) : null;
+            String entityTag = GET_CAPABILITIES.equals(operation) ? this.entityTag : null;
+            if (entityTag != null) {
+                exchange.getResponseHeaders().set("ETag", entityTag);
+            }
+            if (response == null) {
+                exchange.sendResponseHeaders(400, -1);
+            } else if (statusCode != 200) {
+                exchange.sendResponseHeaders(statusCode, -1);
+            } else if (entityTag != null
+                    && entityTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "application/xml");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String getOperation(HttpExchange exchange) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod())) {
+            String query = exchange.getRequestURI().getQuery();
+            if (query != null && query.contains("request=" + GET_CAPABILITIES)) {
+                return GET_CAPABILITIES;
+            }
+            return null;
+        }
+        try (InputStream in = exchange.getRequestBody()) {
+            String body = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+            if (body.contains(GET_FEATURE_OF_INTEREST)) {
+                return GET_FEATURE_OF_INTEREST;
+            } else if (body.contains(GET_OBSERVATION)) {
+                return GET_OBSERVATION;
+            } else if (body.contains(GET_CAPABILITIES)) {
+                return GET_CAPABILITIES;
+            }
+            return null;
+        }
+    }
+
+    private static String capabilities() {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<sos:Capabilities xmlns:sos=\"http://www.opengis.net/sos/2.0\""
+                + " xmlns:ows=\"http://www.opengis.net/ows/1.1\" xmlns:xlink=\"http://www.w3.org/1999/xlink\""
+                + " version=\"2.0.0\"><ows:OperationsMetadata>"
+                + operation(GET_CAPABILITIES) + operation(GET_FEATURE_OF_INTEREST) + operation(GET_OBSERVATION)
+                + "</ows:OperationsMetadata></sos:Capabilities>";
+    }
+
+    private static String operation(String name) {
+        return "<ows:Operation name=\"" + name + "\"><ows:DCP><ows:HTTP>"
+                + "<ows:Get xlink:href=\"http://localhost/service\"/>"
+                + "<ows:Post xlink:href=\"http://localhost/service\"/>"
+                + "</ows:HTTP></ows:DCP></ows:Operation>";
+    }
+
+    private static String features(int count) {
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<sos:GetFeatureOfInterestResponse xmlns:sos=\"http://www.opengis.net/sos/2.0\""
+                + " xmlns:gml=\"http://www.opengis.net/gml/3.2\" xmlns:sams=\"http://www.opengis.net/samplingSpatial/2.0\""
+                + " xmlns:sf=\"http://www.opengis.net/sampling/2.0\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">");
+        for (int i = 0; i < count; i++) {
+            builder.append("<sos:featureMember>").append(feature(i)).append("</sos:featureMember>");
+        }
+        return builder.append("</sos:GetFeatureOfInterestResponse>").toString();
+    }
+
+    private static String feature(int i) {
+        return "<sams:SF_SpatialSamplingFeature gml:id=\"foi_" + i + "\">"
+                + "<gml:identifier codeSpace=\"http://www.opengis.net/def/nil/OGC/0/unknown\">http://example.org/foi/"
+                + i + "</gml:identifier><gml:name>Feature " + i + "</gml:name>"
+                + "<sf:type xlink:href=\"http://www.opengis.net/def/samplingFeatureType/OGC-OM/2.0/SF_SamplingPoint\"/>"
+                + "<sf:sampledFeature xlink:href=\"http://www.opengis.net/def/nil/OGC/0/unknown\"/>"
+                + "<sams:shape><gml:Point gml:id=\"point_" + i + "\" srsName=\"http://www.opengis.net/def/crs/EPSG/0/4326\">"
+                + "<gml:pos>" + (-30.0 - i % 10) + " " + (140.0 + i % 20) + "</gml:pos></gml:Point></sams:shape>"
+                + "</sams:SF_SpatialSamplingFeature>";
+    }
+
+    private static String observations(int count) {
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<sos:GetObservationResponse xmlns:sos=\"http://www.opengis.net/sos/2.0\""
+                + " xmlns:om=\"http://www.opengis.net/om/2.0\" xmlns:gml=\"http://www.opengis.net/gml/3.2\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">");
+        for (int i = 0; i < count; i++) {
+            String time = String.format("2015-01-01T%02d:%02d:00Z", i / 60 % 24, i % 60);
+            builder.append("<sos:observationData><om:OM_Observation gml:id=\"o_").append(i).append("\">")
+                    .append("<om:type xlink:href=\"http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_Measurement\"/>")
+                    .append("<om:phenomenonTime><gml:TimeInstant gml:id=\"t_").append(i).append("\"><gml:timePosition>")
+                    .append(time).append("</gml:timePosition></gml:TimeInstant></om:phenomenonTime>")
+                    .append("<om:resultTime xlink:href=\"#t_").append(i).append("\"/>")
+                    .append("<om:procedure xlink:href=\"http://example.org/procedure/").append(i % 10).append("\"/>")
+                    .append("<om:observedProperty xlink:href=\"http://example.org/property/temperature\"/>")
+                    .append("<om:featureOfInterest xlink:href=\"http://example.org/foi/").append(i % 10).append("\"/>")
+                    .append("<om:result xsi:type=\"gml:MeasureType\" uom=\"degC\">").append(15 + i % 10)
+                    .append("</om:result></om:OM_Observation></sos:observationData>");
+        }
+        return builder.append("</sos:GetObservationResponse>").toString();
+    }
+
+}
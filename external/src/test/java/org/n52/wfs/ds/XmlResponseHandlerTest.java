@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.xmlbeans.XmlObject;
+import org.junit.Test;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+
+public class XmlResponseHandlerTest {
+
+    @Test
+    public void testExceptionReportIsDetected() throws OwsExceptionReport, IOException {
+        assertThat(XmlResponseHandler.isExceptionReport(parse(
+                "<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows/1.1\" version=\"2.0.0\"/>")), is(true));
+        assertThat(XmlResponseHandler.isExceptionReport(parse(
+                "<sos:GetObservationResponse xmlns:sos=\"http://www.opengis.net/sos/2.0\"/>")), is(false));
+    }
+
+    @Test
+    public void testContentLengthIsCounted() throws OwsExceptionReport, IOException {
+        XmlResponseHandler handler = new XmlResponseHandler();
+        byte[] content = "<a><b/></a>".getBytes(StandardCharsets.UTF_8);
+        handler.handle(new ByteArrayInputStream(content));
+        assertThat(handler.getContentLength(), is((long) content.length));
+        assertThat(handler.getParsedSize(), is((long) content.length * XmlResponseHandler.PARSED_SIZE_FACTOR));
+    }
+
+    @Test
+    public void testHandledResponseIsRemembered() throws OwsExceptionReport, IOException {
+        XmlResponseHandler handler = new XmlResponseHandler();
+        XmlObject xml = handler.handle(new ByteArrayInputStream("<a/>".getBytes(StandardCharsets.UTF_8)));
+        assertThat(handler.getResponse(), is(sameInstance(xml)));
+        assertThat(new XmlResponseHandler().getResponse(), is(nullValue()));
+    }
+
+    private static XmlObject parse(String xml) throws OwsExceptionReport, IOException {
+        return new XmlResponseHandler().handle(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+}
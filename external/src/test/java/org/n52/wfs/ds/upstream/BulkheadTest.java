@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BulkheadTest {
+
+    @Test
+    public void testRejectsWithoutWaiting() throws InterruptedException {
+        Bulkhead bulkhead = new Bulkhead("test", 2, 0, 0);
+        assertThat(bulkhead.tryAcquire(), is(true));
+        assertThat(bulkhead.tryAcquire(), is(true));
+        assertThat(bulkhead.tryAcquire(), is(false));
+        assertThat(bulkhead.getRejectedCalls(), is(1L));
+        bulkhead.release();
+        assertThat(bulkhead.tryAcquire(), is(true));
+        assertThat(bulkhead.getActiveCalls(), is(2));
+    }
+
+    @Test
+    public void testRejectsAfterWaitDuration() throws InterruptedException {
+        Bulkhead bulkhead = new Bulkhead("test", 1, 1, 50);
+        assertThat(bulkhead.tryAcquire(), is(true));
+        long start = System.currentTimeMillis();
+        assertThat(bulkhead.tryAcquire(), is(false));
+        assertThat(System.currentTimeMillis() - start >= 50, is(true));
+        assertThat(bulkhead.getWaitingCalls(), is(0));
+    }
+
+    @Test
+    public void testWaitingCallAcquiresReleasedSlot() throws InterruptedException {
+        Bulkhead bulkhead = new Bulkhead("test", 1, 1, 5000);
+        assertThat(bulkhead.tryAcquire(), is(true));
+        Thread releaser = new Thread(() -> {
+            while (bulkhead.getWaitingCalls() == 0) {
+                Thread.yield();
+            }
+            bulkhead.release();
+        });
+        releaser.start();
+        assertThat(bulkhead.tryAcquire(), is(true));
+        releaser.join();
+        assertThat(bulkhead.getRejectedCalls(), is(0L));
+    }
+
+    @Test
+    public void testAllWaitingCallsAcquireReleasedSlots() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 2, 2, 5000);
+        assertThat(bulkhead.tryAcquire(), is(true));
+        assertThat(bulkhead.tryAcquire(), is(true));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> first = executor.submit(bulkhead::tryAcquire);
+            Future<Boolean> second = executor.submit(bulkhead::tryAcquire);
+            while (bulkhead.getWaitingCalls() < 2) {
+                Thread.yield();
+            }
+            bulkhead.release();
+            bulkhead.release();
+            assertThat(first.get(5, TimeUnit.SECONDS), is(true));
+            assertThat(second.get(5, TimeUnit.SECONDS), is(true));
+            assertThat(bulkhead.getActiveCalls(), is(2));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
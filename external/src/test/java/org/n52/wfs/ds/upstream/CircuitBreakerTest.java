@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.n52.wfs.ds.upstream.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new CircuitBreaker();
+        breaker.setWindowSize(10);
+        breaker.setMinimumCalls(4);
+        breaker.setErrorRatePercent(50);
+        breaker.setSlowCallDuration(1000);
+        breaker.setSlowCallRatePercent(100);
+        breaker.setHalfOpenCalls(2);
+    }
+
+    @Test
+    public void testOpensOnErrorRate() {
+        breaker.setOpenDuration(60000);
+        breaker.onSuccess(10);
+        breaker.onError(10);
+        breaker.onSuccess(10);
+        assertThat(breaker.getState(), is(State.CLOSED));
+        breaker.onError(10);
+        assertThat(breaker.getState(), is(State.OPEN));
+        assertThat(breaker.tryAcquirePermission(), is(false));
+        assertThat(breaker.getRejectedCalls(), is(1L));
+    }
+
+    @Test
+    public void testOpensOnSlowCalls() {
+        for (int i = 0; i < 4; i++) {
+            breaker.onSuccess(5000);
+        }
+        assertThat(breaker.getState(), is(State.OPEN));
+    }
+
+    @Test
+    public void testClosesAfterSuccessfulProbes() {
+        breaker.setOpenDuration(0);
+        for (int i = 0; i < 4; i++) {
+            breaker.onError(10);
+        }
+        assertThat(breaker.getState(), is(State.OPEN));
+        assertThat(breaker.tryAcquirePermission(), is(true));
+        assertThat(breaker.getState(), is(State.HALF_OPEN));
+        assertThat(breaker.tryAcquirePermission(), is(true));
+        assertThat(breaker.tryAcquirePermission(), is(false));
+        breaker.onSuccess(10);
+        breaker.onSuccess(10);
+        assertThat(breaker.getState(), is(State.CLOSED));
+    }
+
+    @Test
+    public void testReopensOnFailedProbe() {
+        breaker.setOpenDuration(0);
+        for (int i = 0; i < 4; i++) {
+            breaker.onError(10);
+        }
+        assertThat(breaker.tryAcquirePermission(), is(true));
+        breaker.onError(10);
+        assertThat(breaker.getState(), is(State.OPEN));
+    }
+
+    @Test
+    public void testIgnoredProbesReleasePermits() {
+        breaker.setOpenDuration(0);
+        for (int i = 0; i < 4; i++) {
+            breaker.onError(10);
+        }
+        assertThat(breaker.tryAcquirePermission(), is(true));
+        assertThat(breaker.tryAcquirePermission(), is(true));
+        assertThat(breaker.tryAcquirePermission(), is(false));
+        // e.g. aborted hedge losers or interrupted calls
+        breaker.onIgnored();
+        breaker.onIgnored();
+        assertThat(breaker.getState(), is(State.HALF_OPEN));
+        assertThat(breaker.tryAcquirePermission(), is(true));
+        assertThat(breaker.tryAcquirePermission(), is(true));
+        breaker.onSuccess(10);
+        breaker.onSuccess(10);
+        assertThat(breaker.getState(), is(State.CLOSED));
+    }
+
+    @Test
+    public void testOpensWithWindowSmallerThanMinimumCalls() {
+        breaker.setMinimumCalls(20);
+        breaker.setWindowSize(4);
+        for (int i = 0; i < 4; i++) {
+            breaker.onError(10);
+        }
+        assertThat(breaker.getState(), is(State.OPEN));
+    }
+
+    @Test
+    public void testDisabledBreakerPermitsAll() {
+        breaker.setEnabled(false);
+        for (int i = 0; i < 10; i++) {
+            breaker.onError(10);
+        }
+        assertThat(breaker.getState(), is(State.CLOSED));
+        assertThat(breaker.tryAcquirePermission(), is(true));
+    }
+
+}
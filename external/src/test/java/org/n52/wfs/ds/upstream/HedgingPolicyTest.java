@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class HedgingPolicyTest {
+
+    private final HedgingPolicy policy = new HedgingPolicy();
+
+    @Test
+    public void testNoDelayWithoutEnoughLatencies() {
+        for (int i = 0; i < 19; i++) {
+            policy.recordLatency("GetObservation", 100);
+        }
+        assertThat(policy.getDelay("GetObservation"), is(-1L));
+        policy.recordLatency("GetObservation", 100);
+        assertThat(policy.getDelay("GetObservation"), is(100L));
+    }
+
+    @Test
+    public void testDelayPerOperation() {
+        for (int i = 0; i < 20; i++) {
+            policy.recordLatency("GetObservation", 1000);
+            policy.recordLatency("GetFeatureOfInterest", 10);
+        }
+        assertThat(policy.getDelay("GetObservation"), is(1000L));
+        assertThat(policy.getDelay("GetFeatureOfInterest"), is(10L));
+        assertThat(policy.getDelay("GetCapabilities"), is(-1L));
+    }
+
+    @Test
+    public void testFixedDelay() {
+        policy.setDelay(250);
+        assertThat(policy.getDelay("GetObservation"), is(250L));
+    }
+
+    @Test
+    public void testBudget() {
+        policy.setBudgetPercent(50);
+        policy.onRequest();
+        assertThat(policy.tryAcquireHedge(), is(false));
+        policy.onRequest();
+        assertThat(policy.tryAcquireHedge(), is(true));
+        assertThat(policy.tryAcquireHedge(), is(false));
+        assertThat(policy.getHedgedRequests(), is(1L));
+    }
+
+}
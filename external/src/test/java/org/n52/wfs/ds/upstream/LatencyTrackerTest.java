@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void testNoLatencyRecorded() {
+        assertThat(new LatencyTracker(10).getPercentile(95), is(-1L));
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyTracker tracker = new LatencyTracker(100);
+        for (int i = 100; i > 0; i--) {
+            tracker.record(i);
+        }
+        assertThat(tracker.getSize(), is(100));
+        assertThat(tracker.getPercentile(50), is(50L));
+        assertThat(tracker.getPercentile(95), is(95L));
+        assertThat(tracker.getPercentile(100), is(100L));
+    }
+
+    @Test
+    public void testKeepsMostRecentLatencies() {
+        LatencyTracker tracker = new LatencyTracker(10);
+        for (int i = 0; i < 60; i++) {
+            tracker.record(i < 10 ? 1000 : 10);
+        }
+        assertThat(tracker.getSize(), is(10));
+        assertThat(tracker.getPercentile(100), is(10L));
+    }
+
+}
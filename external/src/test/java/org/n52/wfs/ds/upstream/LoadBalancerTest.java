@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.URI;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.n52.iceland.exception.ows.NoApplicableCodeException;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+
+import com.google.common.collect.Lists;
+
+public class LoadBalancerTest {
+
+    private static final URI FIRST = URI.create("http://first.example.org/sos/service");
+
+    private static final URI SECOND = URI.create("http://second.example.org/sos/service");
+
+    private final LoadBalancer loadBalancer = new LoadBalancer();
+
+    @Before
+    public void setUp() {
+        loadBalancer.setEjectionThreshold(2);
+        loadBalancer.setEjectionTime(60000);
+        loadBalancer.setEndpoints(Lists.newArrayList(FIRST, SECOND));
+    }
+
+    @Test(expected = NoApplicableCodeException.class)
+    public void testNoEndpointConfigured() throws OwsExceptionReport {
+        new LoadBalancer().select();
+    }
+
+    @Test
+    public void testPrefersFewerOutstandingRequests() throws OwsExceptionReport {
+        SosEndpoint first = loadBalancer.select();
+        SosEndpoint second = loadBalancer.select();
+        assertThat(first == second, is(false));
+        loadBalancer.onSuccess(first, 10);
+        assertThat(loadBalancer.select() == first, is(true));
+        assertThat(second.getOutstanding(), is(1));
+    }
+
+    @Test
+    public void testEjectsAfterConsecutiveFailures() throws OwsExceptionReport {
+        SosEndpoint first = loadBalancer.getEndpoints().get(0);
+        for (int i = 0; i < 2; i++) {
+            first.onStart();
+            loadBalancer.onFailure(first);
+        }
+        assertThat(first.isAvailable(), is(false));
+        assertThat(first.getEjections(), is(1L));
+        for (int i = 0; i < 10; i++) {
+            SosEndpoint selected = loadBalancer.select();
+            assertThat(selected.getUri(), is(SECOND));
+            loadBalancer.onSuccess(selected, 10);
+        }
+    }
+
+    @Test
+    public void testKeepsStatisticsOfKnownEndpoints() throws OwsExceptionReport {
+        SosEndpoint first = loadBalancer.getEndpoints().get(0);
+        loadBalancer.setEndpoints(Lists.newArrayList(FIRST));
+        assertThat(loadBalancer.getEndpoints().size(), is(1));
+        assertThat(loadBalancer.getEndpoints().get(0) == first, is(true));
+        assertThat(loadBalancer.select() == first, is(true));
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.n52.iceland.exception.ows.NoApplicableCodeException;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+
+public class RequestCoalescerTest {
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    @Test
+    public void testConcurrentCallsShareResponse() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> coalescer.execute("request", () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "response";
+            }));
+            started.await();
+            Future<String> second = executor.submit(() -> coalescer.execute("request", () -> {
+                calls.incrementAndGet();
+                return "other";
+            }));
+            while (coalescer.getCoalescedRequests() == 0) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            assertThat(first.get(5, TimeUnit.SECONDS), is("response"));
+            assertThat(second.get(5, TimeUnit.SECONDS), is("response"));
+            assertThat(calls.get(), is(1));
+            assertThat(coalescer.getInflightRequests(), is(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSequentialCallsAreNotCoalesced() throws OwsExceptionReport {
+        assertThat(coalescer.execute("request", () -> "first"), is("first"));
+        assertThat(coalescer.execute("request", () -> "second"), is("second"));
+        assertThat(coalescer.getCoalescedRequests(), is(0L));
+        assertThat(coalescer.getRequests(), is(2L));
+    }
+
+    @Test(expected = NoApplicableCodeException.class)
+    public void testExceptionIsPropagated() throws OwsExceptionReport {
+        coalescer.execute("request", () -> {
+            throw new NoApplicableCodeException().withMessage("failed");
+        });
+    }
+
+    @Test
+    public void testWaitersGetOwnException() throws Exception {
+        NoApplicableCodeException failure = new NoApplicableCodeException().withMessage("failed");
+        Throwable waiterFailure = coalesceFailure(() -> {
+            throw failure;
+        }, () -> "other");
+        assertThat(waiterFailure instanceof NoApplicableCodeException, is(true));
+        assertThat(waiterFailure == failure, is(false));
+        assertThat(waiterFailure.getCause() == failure, is(true));
+    }
+
+    @Test
+    public void testErrorCompletesWaiters() throws Exception {
+        Error failure = new Error("failed");
+        Throwable waiterFailure = coalesceFailure(() -> {
+            throw failure;
+        }, () -> "other");
+        assertThat(waiterFailure instanceof NoApplicableCodeException, is(true));
+        assertThat(waiterFailure.getCause() == failure, is(true));
+    }
+
+    @Test
+    public void testWaiterRetriesAfterInterruptedCall() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> coalescer.execute("request", () -> {
+                started.countDown();
+                await(release);
+                // e.g. cancelled by the UpstreamExecutor
+                Thread.currentThread().interrupt();
+                throw new NoApplicableCodeException().withMessage("interrupted");
+            }));
+            started.await();
+            Future<String> second = executor.submit(() -> coalescer.execute("request", () -> "retried"));
+            while (coalescer.getCoalescedRequests() == 0) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            assertThat(second.get(5, TimeUnit.SECONDS), is("retried"));
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                fail("expected OwsExceptionReport");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause() instanceof NoApplicableCodeException, is(true));
+            }
+            assertThat(coalescer.getInflightRequests(), is(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Throwable coalesceFailure(UpstreamCall<String> failing, UpstreamCall<String> other) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> coalescer.execute("request", () -> {
+                started.countDown();
+                await(release);
+                return failing.call();
+            }));
+            started.await();
+            Future<String> second = executor.submit(() -> coalescer.execute("request", other));
+            while (coalescer.getCoalescedRequests() == 0) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                fail("expected failure");
+            } catch (ExecutionException e) {
+                // expected
+            }
+            try {
+                second.get(5, TimeUnit.SECONDS);
+                fail("expected failure");
+            } catch (ExecutionException e) {
+                return e.getCause();
+            }
+            return null;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+import org.n52.iceland.ogc.sos.SosConstants;
+
+public class ResponseCacheTest {
+
+    private static final String GET_OBSERVATION = SosConstants.Operations.GetObservation.name();
+
+    private final ResponseCache cache = new ResponseCache();
+
+    @Before
+    public void setUp() {
+        cache.setGetObservationTimeToLive(30000);
+    }
+
+    @After
+    public void tearDown() {
+        cache.destroy();
+    }
+
+    @Test
+    public void testReturnsCachedResponse() throws OwsExceptionReport {
+        assertThat(cache.get(GET_OBSERVATION, "request", () -> new WeightedResponse<>("first", 10)), is("first"));
+        assertThat(cache.get(GET_OBSERVATION, "request", () -> new WeightedResponse<>("second", 10)), is("first"));
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getMisses(), is(1L));
+        assertThat(cache.getWeight(), is(10L));
+    }
+
+    @Test
+    public void testDisabledOperationIsNotCached() throws OwsExceptionReport {
+        cache.setGetObservationTimeToLive(0);
+        cache.get(GET_OBSERVATION, "request", () -> new WeightedResponse<>("first", 10));
+        assertThat(cache.get(GET_OBSERVATION, "request", () -> new WeightedResponse<>("second", 10)), is("second"));
+        assertThat(cache.getSize(), is(0));
+    }
+
+    @Test
+    public void testNotCachedByDefault() throws OwsExceptionReport {
+        ResponseCache defaults = new ResponseCache();
+        try {
+            defaults.get(GET_OBSERVATION, "request", () -> new WeightedResponse<>("first", 10));
+            assertThat(defaults.get(GET_OBSERVATION, "request", () -> new WeightedResponse<>("second", 10)),
+                    is("second"));
+            assertThat(defaults.getSize(), is(0));
+        } finally {
+            defaults.destroy();
+        }
+    }
+
+    @Test
+    public void testRevalidatesAgainAfterUncacheableResponse() throws Exception {
+        cache.setGetObservationTimeToLive(1);
+        cache.setStaleWhileRevalidate(60000);
+        cache.get(GET_OBSERVATION, "request", () -> new WeightedResponse<>("first", 10));
+        Thread.sleep(5);
+        // e.g. an exception report, the stale entry is kept
+        assertThat(cache.get(GET_OBSERVATION, "request", () -> new WeightedResponse<>("error", 10, false)),
+                is("first"));
+        long timeout = System.currentTimeMillis() + 5000;
+        String response = "first";
+        while ("first".equals(response) && System.currentTimeMillis() < timeout) {
+            Thread.sleep(5);
+            response = cache.get(GET_OBSERVATION, "request", () -> new WeightedResponse<>("second", 10));
+        }
+        assertThat(response, is("second"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws OwsExceptionReport {
+        cache.setMaxSize(1);
+        long half = 1024 * 1024 / 2;
+        cache.get(GET_OBSERVATION, "a", () -> new WeightedResponse<>("a", half));
+        cache.get(GET_OBSERVATION, "b", () -> new WeightedResponse<>("b", half));
+        cache.get(GET_OBSERVATION, "a", () -> new WeightedResponse<>("other", half));
+        cache.get(GET_OBSERVATION, "c", () -> new WeightedResponse<>("c", half));
+        assertThat(cache.getEvictions(), is(1L));
+        assertThat(cache.get(GET_OBSERVATION, "a", () -> new WeightedResponse<>("other", half)), is("a"));
+        assertThat(cache.get(GET_OBSERVATION, "b", () -> new WeightedResponse<>("new", half)), is("new"));
+    }
+
+}
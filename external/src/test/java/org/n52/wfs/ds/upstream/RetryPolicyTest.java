@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testBackoffIsBoundedByMaxBackoff() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialBackoff(100);
+        policy.setMaxBackoff(500);
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long backoff = policy.getBackoff(attempt);
+            assertThat(backoff, greaterThanOrEqualTo(0L));
+            assertThat(backoff, lessThanOrEqualTo(500L));
+        }
+        assertThat(policy.getBackoff(1), lessThanOrEqualTo(100L));
+    }
+
+    @Test
+    public void testMaxAttempts() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxAttempts(3);
+        assertThat(policy.canRetry(1), is(true));
+        assertThat(policy.canRetry(2), is(true));
+        assertThat(policy.canRetry(3), is(false));
+    }
+
+    @Test
+    public void testBudgetLimitsRetries() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxAttempts(100);
+        policy.setBudgetPercent(0);
+        int retries = 0;
+        while (policy.canRetry(1)) {
+            retries++;
+        }
+        // only the initial balance can be spent without new requests
+        assertThat(retries, is(10));
+        assertThat(policy.getExhaustedBudget(), is(1L));
+        for (int i = 0; i < 100; i++) {
+            policy.onRequest();
+        }
+        assertThat(policy.canRetry(1), is(false));
+    }
+
+    @Test
+    public void testBudgetIsRefilledByRequests() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBudgetPercent(50);
+        while (policy.canRetry(1)) {
+            // drain the budget
+        }
+        policy.onRequest();
+        policy.onRequest();
+        assertThat(policy.canRetry(1), is(true));
+        assertThat(policy.canRetry(1), is(false));
+    }
+
+    @Test
+    public void testRetryableFailures() {
+        RetryPolicy policy = new RetryPolicy();
+        assertThat(policy.isRetryable(new IOException()), is(true));
+        assertThat(policy.isRetryable(new ConnectionPoolTimeoutException()), is(false));
+        assertThat(policy.isRetryable(503), is(true));
+        assertThat(policy.isRetryable(502), is(true));
+        assertThat(policy.isRetryable(504), is(true));
+        assertThat(policy.isRetryable(500), is(false));
+        assertThat(policy.isRetryable(200), is(false));
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.URI;
+
+import org.junit.Test;
+
+public class SosEndpointTest {
+
+    private final SosEndpoint endpoint = new SosEndpoint(URI.create("http://example.org/sos/service"));
+
+    @Test
+    public void testOutstandingRequests() {
+        endpoint.onStart();
+        endpoint.onStart();
+        assertThat(endpoint.getOutstanding(), is(2));
+        endpoint.onSuccess(100);
+        endpoint.onCancel();
+        assertThat(endpoint.getOutstanding(), is(0));
+        assertThat(endpoint.getRequests(), is(2L));
+        assertThat(endpoint.getErrors(), is(0L));
+    }
+
+    @Test
+    public void testAverageLatency() {
+        endpoint.onStart();
+        endpoint.onSuccess(100);
+        assertThat(endpoint.getAverageLatency(), is(100.0));
+        endpoint.onStart();
+        endpoint.onSuccess(200);
+        assertThat(endpoint.getAverageLatency(), is(120.0));
+    }
+
+    @Test
+    public void testEjection() {
+        endpoint.onStart();
+        assertThat(endpoint.onFailure(2, 60000), is(false));
+        assertThat(endpoint.isAvailable(), is(true));
+        endpoint.onStart();
+        assertThat(endpoint.onFailure(2, 60000), is(true));
+        assertThat(endpoint.isAvailable(), is(false));
+        endpoint.onStart();
+        assertThat(endpoint.onFailure(2, 60000), is(false));
+        assertThat(endpoint.getEjections(), is(1L));
+        assertThat(endpoint.getErrors(), is(3L));
+    }
+
+    @Test
+    public void testSuccessResetsConsecutiveFailures() {
+        endpoint.onStart();
+        endpoint.onFailure(2, 60000);
+        endpoint.onStart();
+        endpoint.onSuccess(10);
+        endpoint.onStart();
+        assertThat(endpoint.onFailure(2, 60000), is(false));
+        assertThat(endpoint.isAvailable(), is(true));
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wfs.ds.upstream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.n52.iceland.exception.ows.NoApplicableCodeException;
+import org.n52.iceland.exception.ows.OwsExceptionReport;
+
+import com.google.common.collect.Lists;
+
+public class UpstreamExecutorTest {
+
+    private final UpstreamExecutor executor = new UpstreamExecutor();
+
+    @After
+    public void tearDown() {
+        executor.destroy();
+    }
+
+    @Test
+    public void testEmptyCalls() throws OwsExceptionReport {
+        assertThat(executor.invokeAll(Collections.<UpstreamCall<String>> emptyList()).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testResultsInCallOrder() throws OwsExceptionReport {
+        List<UpstreamCall<Integer>> calls = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            int value = i;
+            calls.add(() -> value);
+        }
+        assertThat(executor.invokeAll(calls), is((List<Integer>) Lists.newArrayList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9)));
+    }
+
+    @Test
+    public void testFailureCancelsSlowerCalls() throws InterruptedException {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        List<UpstreamCall<String>> calls = Lists.newArrayList();
+        // the first call is executed by the caller and blocks until cancelled
+        calls.add(() -> {
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return "slow";
+        });
+        calls.add(() -> {
+            throw new NoApplicableCodeException().withMessage("failed");
+        });
+        long start = System.currentTimeMillis();
+        try {
+            executor.invokeAll(calls);
+            fail("expected OwsExceptionReport");
+        } catch (OwsExceptionReport e) {
+            assertThat(e.getMessage().contains("failed"), is(true));
+        }
+        assertThat(System.currentTimeMillis() - start < 5000, is(true));
+        assertThat(interrupted.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(Thread.currentThread().isInterrupted(), is(false));
+    }
+
+}